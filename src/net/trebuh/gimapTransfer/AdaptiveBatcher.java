@@ -0,0 +1,139 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+/**
+ * Groups items (typically small messages) into batches that are fetched with
+ * a single request, so that the cost of a round-trip to the server is shared
+ * by many items.
+ *
+ * A batch is flushed when it reaches a number of items or a total size. The
+ * size limit is tuned from the measured duration of the fetches: it grows
+ * while full batches are fetched much faster than the target latency (the
+ * round-trip dominates), and shrinks when a fetch takes longer than the
+ * target latency (so that a batch is not too long to retry and the consumers
+ * are not starved). The tuning is shared by all the batches created by a
+ * batcher, which is thread-safe.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class AdaptiveBatcher {
+    private static final Logger log = Logger.getLogger(AdaptiveBatcher.class.getName());
+
+    /**
+     * The action applied on each batch.
+     */
+    interface Fetch<T> {
+        /**
+         * @return the time spent fetching the batch (in nanoseconds), which
+         *         excludes the time spent waiting before or after the fetch
+         *         (e.g., for the consumers), as it says nothing about the
+         *         latency of the server
+         */
+        long fetch(List<T> batch) throws MessagingException;
+    }
+
+    private final long minBytes;
+    private final long maxBytes;
+    private final int maxCount;
+    private final long targetLatency;
+    private volatile long targetBytes;
+
+    /**
+     * @param initialBytes
+     *            the initial size limit of the batches (in bytes)
+     * @param minBytes
+     *            the size limit is never tuned below this value
+     * @param maxBytes
+     *            the size limit is never tuned above this value
+     * @param maxCount
+     *            the maximum number of items in a batch
+     * @param targetLatency
+     *            the expected duration of a fetch (in nanoseconds)
+     */
+    AdaptiveBatcher(long initialBytes, long minBytes, long maxBytes, int maxCount, long targetLatency) {
+        if (minBytes <= 0 || minBytes > maxBytes || maxCount <= 0 || targetLatency <= 0)
+            throw new IllegalArgumentException();
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.maxCount = maxCount;
+        this.targetLatency = targetLatency;
+        this.targetBytes = Math.max(minBytes, Math.min(maxBytes, initialBytes));
+    }
+
+    /**
+     * @return the current size limit of the batches (in bytes)
+     */
+    long getTargetBytes() {
+        return targetBytes;
+    }
+
+    /**
+     * @param fetch
+     *            the action to apply on each batch
+     * @return a new, empty, batch (not thread-safe)
+     */
+    <T> Batch<T> newBatch(Fetch<T> fetch) {
+        return new Batch<>(fetch);
+    }
+
+    private synchronized void record(int count, long bytes, long elapsed) {
+        final long previous = targetBytes;
+        if (elapsed > targetLatency)
+            targetBytes = Math.max(minBytes, (long) (previous * ((double) targetLatency / elapsed)));
+        else if (elapsed < targetLatency / 2 && (bytes >= previous || count >= maxCount))
+            targetBytes = Math.min(maxBytes, previous + previous / 2);
+        if (targetBytes != previous)
+            log.fine(String.format("Fetched %d messages (%d bytes) in %d ms, batch size: %d -> %d bytes", count,
+                    bytes, elapsed / 1000000, previous, targetBytes));
+    }
+
+    /**
+     * A batch being filled. Once full, it is fetched and emptied.
+     */
+    final class Batch<T> {
+        private final Fetch<T> fetch;
+        private final List<T> items = new ArrayList<>();
+        private long bytes;
+
+        private Batch(Fetch<T> fetch) {
+            this.fetch = fetch;
+        }
+
+        /**
+         * Add an item to the batch, and fetch the batch if it is full.
+         *
+         * @param item
+         * @param size
+         *            the size of the item (in bytes)
+         * @throws MessagingException
+         *             if the batch was fetched and the fetch failed
+         */
+        void add(T item, long size) throws MessagingException {
+            items.add(item);
+            bytes += size;
+            if (bytes >= targetBytes || items.size() >= maxCount)
+                flush();
+        }
+
+        /**
+         * Fetch the items of the batch (if any), even if it is not full.
+         *
+         * @throws MessagingException
+         */
+        void flush() throws MessagingException {
+            if (items.isEmpty())
+                return;
+            try {
+                record(items.size(), bytes, fetch.fetch(items));
+            } finally {
+                items.clear();
+                bytes = 0;
+            }
+        }
+    }
+}
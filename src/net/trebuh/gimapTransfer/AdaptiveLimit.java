@@ -0,0 +1,178 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.mail.FolderClosedException;
+import javax.mail.StoreClosedException;
+
+import com.sun.mail.iap.ConnectionException;
+
+/**
+ * A limit on the number of concurrent operations on a server, adjusted with
+ * an AIMD (additive increase, multiplicative decrease) policy: the limit
+ * grows by one while the throughput improves (see {@link #increase()}), and
+ * is halved when the server throttles us or an operation fails (see
+ * {@link #onError(Throwable)}).
+ *
+ * The waiting operations park on a {@link ReentrantLock} rather than on a
+ * monitor, which would pin their carrier thread if they are virtual threads.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class AdaptiveLimit {
+    private static final Logger log = Logger.getLogger(AdaptiveLimit.class.getName());
+
+    private final String name;
+    private final int max;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * signaled when an operation ends or the limit grows
+     */
+    private final Condition available = lock.newCondition();
+    /**
+     * guarded by <code>lock</code>
+     */
+    private int limit;
+    /**
+     * the number of operations running, guarded by <code>lock</code>
+     */
+    private int inUse;
+    /**
+     * whether the limit has been decreased since the last call to
+     * {@link #increase()}, guarded by <code>lock</code>
+     */
+    private boolean decreased;
+
+    /**
+     * @param name
+     *            the name of the server, for the logs
+     * @param initial
+     *            the initial limit
+     * @param max
+     *            the limit never grows above this value
+     */
+    AdaptiveLimit(String name, int initial, int max) {
+        if (initial < 1 || initial > max)
+            throw new IllegalArgumentException("Invalid initial limit: " + initial);
+        this.name = name;
+        this.limit = initial;
+        this.max = max;
+    }
+
+    /**
+     * Wait until an operation can start.
+     *
+     * @throws InterruptedException
+     */
+    void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inUse >= limit)
+                available.await();
+            inUse++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #acquire()}, going on waiting if interrupted (the
+     * interruption status is restored).
+     */
+    void acquireUninterruptibly() {
+        boolean interrupted = false;
+        while (true)
+            try {
+                acquire();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Signal the end of an operation started with {@link #acquire()}.
+     */
+    void release() {
+        lock.lock();
+        try {
+            inUse--;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMax() {
+        return max;
+    }
+
+    /**
+     * Increase the limit by one, unless it has been decreased since the last
+     * call (the server is still recovering) or it is already at its maximum.
+     */
+    void increase() {
+        lock.lock();
+        try {
+            if (!decreased && limit < max) {
+                limit++;
+                available.signalAll();
+                log.fine(String.format("Increasing the concurrency limit of %s to %d", name, limit));
+            }
+            decreased = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Halve the limit after a failure, more importantly if the server
+     * throttles us (see {@link #isThrottling(Throwable)}).
+     *
+     * @param e
+     *            the failure
+     */
+    void onError(Throwable e) {
+        lock.lock();
+        try {
+            final int previous = limit;
+            limit = Math.max(1, limit / 2);
+            decreased = true;
+            if (limit != previous)
+                log.info(String.format("%s %s, decreasing its concurrency limit to %d", name,
+                        isThrottling(e) ? "throttles us" : "failed", limit));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if <code>e</code> (or one of its causes) is a
+     *         [THROTTLED] response or a connection closed by the server (BYE)
+     */
+    static boolean isThrottling(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConnectionException || t instanceof StoreClosedException
+                    || t instanceof FolderClosedException)
+                return true;
+            if (t.getMessage() != null && t.getMessage().contains("[THROTTLED]"))
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,101 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.gimap.GmailMessage;
+import com.sun.mail.iap.ByteArray;
+
+/**
+ * The messages that are ready to be appended to a target folder, so that the
+ * messages that became ready while a previous append was running are
+ * appended together.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class AppendQueue {
+    /**
+     * A message ready to be appended.
+     */
+    static final class Pending {
+        final GmailMessage gmsg;
+        final int size;
+        /**
+         * whether the content of the message has not been fetched and must be
+         * streamed from the source folder (which must stay open)
+         */
+        final boolean stream;
+        /**
+         * the fetched content of the message, cleared once it is appended
+         */
+        volatile ByteArray content;
+        /**
+         * set once the message has been removed from the queue to be
+         * appended
+         */
+        volatile boolean taken;
+        /**
+         * set once the message has been appended, possibly before the
+         * failure of the other messages of its batch
+         */
+        volatile boolean appended;
+        /**
+         * set once an APPEND of the message has been sent: if it failed, the
+         * message may still have been appended (e.g., if the connection was
+         * lost before the response)
+         */
+        volatile boolean sent;
+        /**
+         * set if the append of the batch containing the message failed
+         */
+        volatile Exception failure;
+
+        Pending(GmailMessage gmsg, int size, ByteArray content) {
+            this.gmsg = gmsg;
+            this.size = size;
+            this.stream = content == null;
+            this.content = content;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Pending> ready = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param content
+     *            the fetched content of the message, or <code>null</code> if
+     *            it must be streamed
+     * @return the added message
+     */
+    Pending add(GmailMessage gmsg, ByteArray content) throws MessagingException {
+        final Pending pending = new Pending(gmsg, gmsg.getSize(), content);
+        ready.add(pending);
+        return pending;
+    }
+
+    /**
+     * Remove the oldest ready messages, as long as they fit in the bounds.
+     * The first message is always removed, whatever its size.
+     *
+     * @param maxCount
+     *            the maximum number of messages to remove
+     * @param maxBytes
+     *            the maximum total size of the removed messages
+     * @return the removed messages, in the order they were added (possibly
+     *         none)
+     */
+    synchronized List<Pending> drain(int maxCount, long maxBytes) {
+        final List<Pending> batch = new ArrayList<>();
+        long bytes = 0;
+        for (Pending next = ready.peek(); next != null && batch.size() < maxCount; next = ready.peek()) {
+            if (!batch.isEmpty() && bytes + next.size > maxBytes)
+                break;
+            batch.add(ready.poll());
+            next.taken = true;
+            bytes += next.size;
+        }
+        return batch;
+    }
+}
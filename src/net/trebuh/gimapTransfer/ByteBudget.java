@@ -0,0 +1,84 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on the number of bytes in flight (e.g., the total size of the
+ * messages handed to the consumers and not appended yet): the producers wait
+ * for the bytes they need to be released.
+ *
+ * A single request larger than the whole budget is granted once nothing else
+ * is in flight, so that large messages are still copied (one at a time).
+ * The producers wait on a {@link ReentrantLock}, which does not pin the
+ * carrier of a virtual thread.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class ByteBudget {
+    private final long max;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * signaled when bytes are released
+     */
+    private final Condition released = lock.newCondition();
+    /**
+     * guarded by <code>lock</code>
+     */
+    private long inFlight;
+
+    /**
+     * @param max
+     *            the number of bytes that can be in flight
+     */
+    ByteBudget(long max) {
+        if (max < 1)
+            throw new IllegalArgumentException("Invalid budget: " + max);
+        this.max = max;
+    }
+
+    /**
+     * Wait until <code>bytes</code> bytes fit in the budget.
+     *
+     * @param bytes
+     * @throws InterruptedException
+     */
+    void acquire(long bytes) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight > 0 && inFlight + bytes > max)
+                released.await();
+            inFlight += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release bytes granted by {@link #acquire(long)}.
+     *
+     * @param bytes
+     */
+    void release(long bytes) {
+        lock.lock();
+        try {
+            inFlight -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMax() {
+        return max;
+    }
+}
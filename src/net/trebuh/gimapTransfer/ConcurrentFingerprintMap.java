@@ -0,0 +1,129 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.Arrays;
+
+/**
+ * A thread-safe map from 128-bit fingerprints (two <code>long</code>) to
+ * non-negative <code>int</code> values. Like {@link ConcurrentLongIntMap}, it
+ * is split into independently locked segments of open addressing tables, so
+ * that an entry only takes 20 bytes (and at most twice as much with the free
+ * slots).
+ *
+ * The fingerprints are expected to be uniformly distributed (e.g., the result
+ * of a hash function), their bits are used as is to choose the slots.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class ConcurrentFingerprintMap {
+    private static final int SEGMENT_BITS = 6;
+    private static final int FREE = -1;
+
+    private static final class Segment {
+        long[] highs;
+        long[] lows;
+        int[] values;
+        int size;
+
+        Segment(int capacity) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, FREE);
+        }
+
+        int putIfAbsent(long high, long low, int value) {
+            final int mask = values.length - 1;
+            for (int i = (int) low & mask;; i = (i + 1) & mask) {
+                final int cur = values[i];
+                if (cur == FREE) {
+                    highs[i] = high;
+                    lows[i] = low;
+                    values[i] = value;
+                    if (++size > values.length / 2)
+                        rehash();
+                    return FREE;
+                }
+                if (highs[i] == high && lows[i] == low)
+                    return cur;
+            }
+        }
+
+        private void rehash() {
+            final long[] oldHighs = highs;
+            final long[] oldLows = lows;
+            final int[] oldValues = values;
+            highs = new long[oldValues.length * 2];
+            lows = new long[oldValues.length * 2];
+            values = new int[oldValues.length * 2];
+            Arrays.fill(values, FREE);
+            final int mask = values.length - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] == FREE)
+                    continue;
+                int i = (int) oldLows[j] & mask;
+                while (values[i] != FREE)
+                    i = (i + 1) & mask;
+                highs[i] = oldHighs[j];
+                lows[i] = oldLows[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private final Segment[] segments;
+
+    public ConcurrentFingerprintMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of entries that can be added without resizing
+     */
+    public ConcurrentFingerprintMap(int expectedSize) {
+        segments = new Segment[1 << SEGMENT_BITS];
+        int capacity = 16;
+        while (capacity < 2L * expectedSize / segments.length)
+            capacity <<= 1;
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(capacity);
+    }
+
+    private Segment segmentFor(long high) {
+        return segments[(int) (high >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * Associates <code>value</code> to the fingerprint if it is not in the
+     * map.
+     *
+     * @param high
+     *            the 64 high bits of the fingerprint
+     * @param low
+     *            the 64 low bits of the fingerprint
+     * @param value
+     *            a non-negative value
+     * @return the value already associated to the fingerprint, or -1 if there
+     *         was none
+     */
+    public int putIfAbsent(long high, long low, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value: " + value);
+        final Segment segment = segmentFor(high);
+        synchronized (segment) {
+            return segment.putIfAbsent(high, low, value);
+        }
+    }
+
+    /**
+     * @return the number of entries of the map
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments)
+            synchronized (segment) {
+                size += segment.size;
+            }
+        return size;
+    }
+}
@@ -0,0 +1,213 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * A thread-safe map from primitive <code>long</code> keys to non-negative
+ * <code>int</code> values. The map is split into independently locked
+ * segments, each being an open addressing table with linear probing, so that
+ * neither keys nor values are boxed.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class ConcurrentLongIntMap {
+    /**
+     * Like {@link java.util.function.BiConsumer}, for primitive keys and
+     * values.
+     */
+    public interface LongIntConsumer {
+        void accept(long key, int value);
+    }
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int FREE = -1;
+
+    private static final class Segment {
+        long[] keys;
+        int[] values;
+        int size;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, FREE);
+        }
+
+        int putMin(long key, int value, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                final int cur = values[i];
+                if (cur == FREE) {
+                    keys[i] = key;
+                    values[i] = value;
+                    if (++size > keys.length / 2)
+                        rehash();
+                    return FREE;
+                }
+                if (keys[i] == key) {
+                    if (value < cur)
+                        values[i] = value;
+                    return cur;
+                }
+            }
+        }
+
+        int get(long key, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                if (values[i] == FREE)
+                    return FREE;
+                if (keys[i] == key)
+                    return values[i];
+            }
+        }
+
+        /**
+         * @return the number of removed entries
+         */
+        int removeIf(LongPredicate filter) {
+            int removed = 0;
+            for (int j = 0; j < keys.length; j++)
+                if (values[j] != FREE && filter.test(keys[j])) {
+                    /* the table is rebuilt below, the probing sequences do not matter */
+                    values[j] = FREE;
+                    removed++;
+                }
+            if (removed != 0) {
+                size -= removed;
+                int capacity = 16;
+                while (capacity / 2 < size)
+                    capacity <<= 1;
+                resize(capacity);
+            }
+            return removed;
+        }
+
+        private void rehash() {
+            resize(keys.length * 2);
+        }
+
+        private void resize(int capacity) {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, FREE);
+            final int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] == FREE)
+                    continue;
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != FREE)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private final Segment[] segments;
+
+    public ConcurrentLongIntMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of entries that can be added without resizing
+     */
+    public ConcurrentLongIntMap(int expectedSize) {
+        segments = new Segment[1 << SEGMENT_BITS];
+        int capacity = 16;
+        while (capacity < 2L * expectedSize / segments.length)
+            capacity <<= 1;
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(capacity);
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * Associates <code>value</code> to <code>key</code> if the key is not in
+     * the map or if it is associated to a greater value.
+     *
+     * @param key
+     * @param value
+     *            a non-negative value
+     * @return the value previously associated to <code>key</code>, or -1 if
+     *         there was none
+     */
+    public int putMin(long key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value: " + value);
+        final int hash = hash(key);
+        final Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.putMin(key, value, hash);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the value associated to <code>key</code>, or -1 if there is
+     *         none
+     */
+    public int get(long key) {
+        final int hash = hash(key);
+        final Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.get(key, hash);
+        }
+    }
+
+    /**
+     * Removes the entries whose key matches <code>filter</code>, shrinking
+     * the map. Each segment is locked while it is filtered.
+     *
+     * @param filter
+     * @return the number of removed entries
+     */
+    public int removeIf(LongPredicate filter) {
+        int removed = 0;
+        for (final Segment segment : segments)
+            synchronized (segment) {
+                removed += segment.removeIf(filter);
+            }
+        return removed;
+    }
+
+    /**
+     * @return the number of entries of the map
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments)
+            synchronized (segment) {
+                size += segment.size;
+            }
+        return size;
+    }
+
+    /**
+     * Applies <code>action</code> on each entry of the map, in no particular
+     * order. The map should not be modified concurrently.
+     *
+     * @param action
+     */
+    public void forEach(LongIntConsumer action) {
+        for (final Segment segment : segments)
+            synchronized (segment) {
+                for (int i = 0; i < segment.keys.length; i++)
+                    if (segment.values[i] != FREE)
+                        action.accept(segment.keys[i], segment.values[i]);
+            }
+    }
+}
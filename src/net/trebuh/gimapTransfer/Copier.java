@@ -1,103 +1,321 @@
 package net.trebuh.gimapTransfer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import javax.mail.FetchProfile;
+import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
-import com.google.common.collect.Sets;
 import com.sun.mail.gimap.GmailFolder;
 import com.sun.mail.gimap.GmailMessage;
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.INTERNALDATE;
+import com.sun.mail.imap.protocol.MessageSet;
 
 public class Copier {
     private static final Logger log = Logger.getLogger(Copier.class.getName());
+    /**
+     * the header holding the Google message identifier of the copied
+     * messages, if they are tracked (see {@link #withTrackingHeader()})
+     */
+    public static final String TRACKING_HEADER = "X-Gmail-Msgid";
+    /**
+     * the batches of small messages may grow up to this factor of their
+     * initial size
+     */
+    private static final int MAX_BATCH_SIZE_FACTOR = 4;
+    /**
+     * maximum number of small messages fetched at once
+     */
+    private static final int MAX_BATCH_COUNT = 1000;
+    /**
+     * expected duration of the fetch of a batch of small messages
+     */
+    private static final long TARGET_FETCH_LATENCY = TimeUnit.SECONDS.toNanos(2);
+    /**
+     * maximum number of messages appended at once to a target folder
+     */
+    private static final int MAX_APPEND_COUNT = 100;
+    /**
+     * maximum total size (in bytes) of the messages appended at once to a
+     * target folder (a larger message is appended alone)
+     */
+    private static final long MAX_APPEND_SIZE = 10 * 1024 * 1024;
+    /**
+     * folders with at least twice this number of messages to copy are split
+     * in chunks of this number of messages, copied concurrently
+     */
+    private static final int CHUNK_SIZE = 5000;
+    /**
+     * period at which the concurrency limits are increased if the
+     * throughput improved
+     */
+    private static final long CONTROL_PERIOD = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * maximum number of times the copy of a message is tried during a run
+     */
+    private static final int MAX_MESSAGE_ATTEMPTS = 3;
+    /**
+     * the messages at least this large are appended by the consumers of the
+     * large messages, the others by those of the medium messages (or of the
+     * small messages if smaller than <code>smallMessageSize</code>)
+     */
+    private static final int LARGE_MESSAGE_SIZE = 1024 * 1024;
+    /**
+     * maximum total size (in bytes) of the small, medium and large messages
+     * handed to the consumers and not appended yet
+     */
+    private static final long SMALL_LANE_BUDGET = 32 * 1024 * 1024;
+    private static final long MEDIUM_LANE_BUDGET = 64 * 1024 * 1024;
+    private static final long LARGE_LANE_BUDGET = 128 * 1024 * 1024;
+    /**
+     * default maximum total size (in bytes) of the messages fetched and not
+     * appended yet
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 256 * 1024 * 1024;
     private final FetchProfile prefetch;
-    private final FetchProfile fetchAll;
-    private final ImmutableSetMultimap<Folder, Long> todo;
-    private final FileBackedSet done;
-    private final FileBackedSet inProgress;
+    /**
+     * the batches of messages to copy, ended by {@link FolderBatch#END}
+     */
+    private final BlockingQueue<FolderBatch> todo;
+    /**
+     * the number of messages to copy, or -1 if the messages to copy are still
+     * being discovered while copying
+     */
+    private final long nbTodo;
+    private final MessageIdJournal done;
+    private final MessageIdJournal inProgress;
     private final Folder targetRoot;
     private final int smallMessageSize;
-    private final long smallMessageBatchSize;
+    /**
+     * groups the small messages so that they are fetched with fewer
+     * round-trips, shared by all folders
+     */
+    private final AdaptiveBatcher smallMessageBatcher;
     private final int refreshRate;
     private final int googlePoolSize;
     private final int targetPoolSize;
     /**
-     * a cache of target folders to avoid having to check if the folders exist
-     * (and keeping a set of folder names that are known to exist is not enough
-     * as it will be checked internally by the folder if it is a new handled)
+     * the target folders, to avoid having to check if the folders exist (and
+     * keeping a set of folder names that are known to exist is not enough as
+     * it will be checked internally by the folder if it is a new handled). It
+     * is shared by the consumers: the appends to a folder are serialized, and
+     * a closed folder uses a connection of the store for each command.
+     */
+    private final TargetFolderRegistry targetFolders;
+    /**
+     * whether to run the producers and the consumers in virtual threads
+     */
+    private boolean virtualThreads;
+    /**
+     * where the messages in progress are copied, or <code>null</code>
      */
-    private final ThreadLocal<Map<List<String>, Folder>> cache;
+    private InProgressTargets targets;
+    /**
+     * whether to stamp the appended messages with {@link #TRACKING_HEADER}
+     */
+    private boolean trackingHeader;
+    /**
+     * maps the labels of the messages to their target folder
+     */
+    private LabelMapper labelMapper = LabelMapper.DEFAULT;
+    /**
+     * whether the messages are copied from the All Mail folder only
+     */
+    private boolean allMailSource;
+    /**
+     * the messages fetched and not appended yet
+     */
+    private ByteBudget memoryBudget = new ByteBudget(DEFAULT_MEMORY_BUDGET);
+    /**
+     * the chunks of the large folders that remain to be copied
+     */
+    private final BlockingQueue<FolderBatch> chunks = new LinkedBlockingQueue<>();
+    /**
+     * the number of batches taken from {@link #todo} that may still be split
+     * into chunks
+     */
+    private final AtomicInteger pendingSplits = new AtomicInteger();
+    /**
+     * set once {@link FolderBatch#END} has been taken from {@link #todo}
+     */
+    private final AtomicBoolean allTaken = new AtomicBoolean();
+    /**
+     * the number of folders (or chunks) being read concurrently
+     */
+    private final AdaptiveLimit googleLimit;
+    /**
+     * the number of appends running concurrently
+     */
+    private final AdaptiveLimit targetLimit;
+    /**
+     * retries of the operations failing because of a lost connection
+     */
+    private final RetryPolicy retryPolicy = new RetryPolicy(6, 1000, 60000);
 
-    private Copier(ImmutableSetMultimap<Folder, Long> todo, FileBackedSet done, FileBackedSet inProgress,
-            final Folder targetRoot, int smallMessageSize, int smallMessageBatchSize, int refreshRate,
-            int googlePoolSize, int targetPoolSize) {
+    private Copier(BlockingQueue<FolderBatch> todo, long nbTodo, MessageIdJournal done,
+            MessageIdJournal inProgress, final Folder targetRoot, int smallMessageSize, int smallMessageBatchSize,
+            int refreshRate, int googlePoolSize, int targetPoolSize) {
         this.todo = todo;
+        this.nbTodo = nbTodo;
         this.done = done;
         this.inProgress = inProgress;
         this.targetRoot = targetRoot;
+        this.targetFolders = new TargetFolderRegistry(targetRoot);
         this.smallMessageSize = smallMessageSize;
-        this.smallMessageBatchSize = smallMessageBatchSize;
+        this.smallMessageBatcher = new AdaptiveBatcher(smallMessageBatchSize, smallMessageSize,
+                MAX_BATCH_SIZE_FACTOR * (long) smallMessageBatchSize, MAX_BATCH_COUNT, TARGET_FETCH_LATENCY);
         this.refreshRate = refreshRate;
         this.googlePoolSize = googlePoolSize;
         this.targetPoolSize = targetPoolSize;
+        /* start at half of the pools, the limits growing while it pays */
+        this.googleLimit = new AdaptiveLimit("GMail", Math.max(1, googlePoolSize / 2), googlePoolSize);
+        this.targetLimit = new AdaptiveLimit("target server", Math.max(1, targetPoolSize / 2), targetPoolSize);
 
         prefetch = new FetchProfile();
         prefetch.add(GmailFolder.FetchProfileItem.MSGID);
         prefetch.add(GmailFolder.FetchProfileItem.LABELS);
         prefetch.add(FetchProfile.Item.SIZE);
+        /* needed to append the messages, whose content is not cached in them */
+        prefetch.add(FetchProfile.Item.FLAGS);
+        prefetch.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+        /* recorded to find the message if the copy is interrupted */
+        prefetch.add("Message-ID");
+    }
 
-        fetchAll = new FetchProfile();
-        fetchAll.add(IMAPFolder.FetchProfileItem.MESSAGE);
-        this.cache = new ThreadLocal<Map<List<String>, Folder>>() {
-            @Override
-            protected Map<List<String>, Folder> initialValue() {
-                return Maps.newHashMap();
-            }
-        };
+    /**
+     * Record where the messages in progress are copied, so that an
+     * interrupted copy can be rolled back quickly.
+     *
+     * @param targets
+     * @return this copier
+     */
+    public Copier recordingTargets(InProgressTargets targets) {
+        this.targets = targets;
+        return this;
+    }
 
+    /**
+     * Map the labels of the messages to their target folder with
+     * <code>labelMapper</code> instead of {@link LabelMapper#DEFAULT}.
+     *
+     * @param labelMapper
+     * @return this copier
+     */
+    public Copier withLabelMapper(LabelMapper labelMapper) {
+        this.labelMapper = labelMapper;
+        return this;
+    }
+
+    /**
+     * Copy the messages from the All Mail folder only (see
+     * {@link TodoPlanner#planAllMail()}): the target folder of a message is
+     * given by its labels only, the name of the folder is only used for the
+     * messages without labels (the archived ones).
+     *
+     * @return this copier
+     */
+    public Copier withAllMailSource() {
+        allMailSource = true;
+        return this;
+    }
+
+    /**
+     * Stamp the appended messages with a {@link #TRACKING_HEADER} header, so
+     * that the messages in progress of an interrupted copy can be found on
+     * the target server.
+     *
+     * @return this copier
+     */
+    public Copier withTrackingHeader() {
+        trackingHeader = true;
+        return this;
+    }
+
+    /**
+     * Bound the memory used by the messages fetched and not appended yet:
+     * the producers wait before fetching messages that do not fit in the
+     * budget (a batch larger than the whole budget is fetched once nothing
+     * else is in flight). The messages that are streamed are not counted.
+     *
+     * @param bytes
+     *            the budget, by default {@link #DEFAULT_MEMORY_BUDGET}
+     * @return this copier
+     */
+    public Copier withMemoryBudget(long bytes) {
+        memoryBudget = new ByteBudget(bytes);
+        return this;
+    }
+
+    /**
+     * Run the producers and the consumers in virtual threads (one per folder
+     * being read and one per message being appended), their concurrency
+     * being limited by semaphores of <code>googlePoolSize</code> and
+     * <code>targetPoolSize</code> permits instead of pools of platform
+     * threads.
+     *
+     * @return this copier
+     * @throws UnsupportedOperationException
+     *             if the running JVM does not support virtual threads
+     */
+    public Copier withVirtualThreads() {
+        if (!VirtualThreads.isAvailable())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        virtualThreads = true;
+        return this;
     }
 
     /**
      * Performs the actual copy on the server
      * 
      * @param todo
-     *            the message to copy. This set is not modified.
+     *            the message to copy, grouped by the folder they should be
+     *            copied from. This map is not modified.
      * @param done
      *            the message that have been copied. This set may not be empty
      *            at beginning but it will not be read. This set will contain
@@ -113,8 +331,9 @@ public class Copier {
      *            Messages smaller than this size (in bytes) are considered
      *            small messages and are fetched in batch
      * @param smallMessageBatchSize
-     *            tries to download (fetch) small messages in batch of at least
-     *            this size (in bytes)
+     *            initial size (in bytes) of the batches in which small
+     *            messages are downloaded (fetched), then tuned from the
+     *            duration of the fetches
      * @param refreshRate
      *            Refresh rate in milliseconds of status messages
      * @param googlePoolSize
@@ -124,106 +343,148 @@ public class Copier {
      * @throws MessagingException
      * @throws IOException
      */
-    public static Copier of(final HashMap<Long, Folder> todo, final FileBackedSet done, final FileBackedSet inProgress,
-            final Folder targetRoot, int smallMessageSize, int smallMessageBatchSize, int refreshRate,
+    public static Copier of(final Map<Folder, LongHashSet> todo, final MessageIdJournal done,
+            final MessageIdJournal inProgress, final Folder targetRoot, int smallMessageSize,
+            int smallMessageBatchSize, int refreshRate, int googlePoolSize, int targetPoolSize)
+            throws MessagingException {
+        final List<FolderBatch> batches = new ArrayList<>();
+        for (final Entry<Folder, LongHashSet> entry : todo.entrySet())
+            batches.add(new FolderBatch(entry.getKey(), entry.getValue()));
+        return of(batches, done, inProgress, targetRoot, smallMessageSize, smallMessageBatchSize, refreshRate,
+                googlePoolSize, targetPoolSize);
+    }
+
+    /**
+     * Like {@link #of(Map, MessageIdJournal, MessageIdJournal, Folder, int, int, int, int, int)},
+     * with the messages to copy given as batches.
+     */
+    public static Copier of(final Collection<FolderBatch> todo, final MessageIdJournal done,
+            final MessageIdJournal inProgress, final Folder targetRoot, int smallMessageSize,
+            int smallMessageBatchSize, int refreshRate, int googlePoolSize, int targetPoolSize)
+            throws MessagingException {
+        final BlockingQueue<FolderBatch> batches = new LinkedBlockingQueue<>(todo);
+        long nbTodo = 0;
+        for (final FolderBatch batch : todo)
+            nbTodo += batch.msgids.size();
+        batches.add(FolderBatch.END);
+        checkArguments(inProgress, targetRoot, googlePoolSize, targetPoolSize);
+        return new Copier(batches, nbTodo, done, inProgress, targetRoot, smallMessageSize, smallMessageBatchSize,
+                refreshRate, googlePoolSize, targetPoolSize);
+    }
+
+    /**
+     * Like {@link #of(Map, MessageIdJournal, MessageIdJournal, Folder, int, int, int, int, int)},
+     * but the messages to copy are taken from <code>todo</code> while they
+     * are being discovered (see {@link TodoPlanner#stream}): copying starts
+     * before the whole source store has been scanned.
+     *
+     * @param todo
+     *            the messages to copy, ended by {@link FolderBatch#END}
+     */
+    public static Copier streaming(final BlockingQueue<FolderBatch> todo, final MessageIdJournal done,
+            final MessageIdJournal inProgress, final Folder targetRoot, int smallMessageSize,
+            int smallMessageBatchSize, int refreshRate, int googlePoolSize, int targetPoolSize)
+            throws MessagingException {
+        checkArguments(inProgress, targetRoot, googlePoolSize, targetPoolSize);
+        return new Copier(todo, -1, done, inProgress, targetRoot, smallMessageSize, smallMessageBatchSize,
+                refreshRate, googlePoolSize, targetPoolSize);
+    }
+
+    private static void checkArguments(final MessageIdJournal inProgress, final Folder targetRoot,
             int googlePoolSize, int targetPoolSize) throws MessagingException {
         Preconditions.checkArgument(inProgress.size() == 0);
         Preconditions.checkArgument((targetRoot.getType() & Folder.HOLDS_FOLDERS) != 0);
         Preconditions.checkArgument((targetRoot.getType() & Folder.HOLDS_MESSAGES) != 0);
         Preconditions.checkArgument(googlePoolSize > 0);
         Preconditions.checkArgument(targetPoolSize > 0);
-        final SetMultimap<Folder, Long> revTodo = Multimaps.invertFrom(Multimaps.forMap(todo), HashMultimap.create());
-        return new Copier(ImmutableSetMultimap.copyOf(revTodo), done, inProgress, targetRoot, smallMessageSize,
-                smallMessageBatchSize, refreshRate, googlePoolSize, targetPoolSize);
     }
 
     public void copyMessages() throws MessagingException, IOException {
 
-        if (todo.isEmpty())
+        if (nbTodo == 0)
             return;
+        targetFolders.load();
 
         final LongAdder copiedSize = new LongAdder();
+        final AtomicLong nbTaken = new AtomicLong();
 
-        final LoadingCache<List<String>, ExecutorService> consumers = CacheBuilder.newBuilder()
-                .build(new CacheLoader<List<String>, ExecutorService>() {
-                    @Override
-                    public ExecutorService load(List<String> key) throws Exception {
-                        return Executors.newSingleThreadExecutor();
-                    }
-                });
+        /*
+         * the appends of the messages of a size class to a target folder are
+         * serialized, targetLimit at a time: the large messages cannot take
+         * all the connections, nor delay the small ones
+         */
+        final Lane[] consumers = { newLane("small", smallMessageSize, targetPoolSize, SMALL_LANE_BUDGET),
+                newLane("medium", LARGE_MESSAGE_SIZE, Math.max(1, targetPoolSize / 2), MEDIUM_LANE_BUDGET),
+                newLane("large", Integer.MAX_VALUE, Math.max(1, targetPoolSize / 4), LARGE_LANE_BUDGET) };
 
-        final ExecutorService producers = Executors.newFixedThreadPool(googlePoolSize);
-        for (final Entry<Folder, Collection<Long>> entry : todo.asMap().entrySet()) {
+        final ExecutorService producers;
+        if (virtualThreads) {
+            producers = VirtualThreads.newPerTaskExecutor();
             producers.submit(() -> {
+                final List<Future<?>> copies = new ArrayList<>();
                 try {
-                    final Folder folder = entry.getKey();
-                    final Set<Long> msgids = (Set<Long>) entry.getValue();
-                    log.info(String.format("Starting folder %s (%s messages to do)", folder.getFullName(),
-                            msgids.size()));
-
-                    if (!folder.isOpen())
-                        folder.open(Folder.READ_ONLY);
-                    ArrayList<Future<?>> futures = Lists.newArrayList();
-                    final List<String> folderNameBasedLabels = Splitter.on(folder.getSeparator())
-                            .splitToList(folder.getFullName());
-                    final Message[] allFolderMessages = folder.getMessages();
-                    folder.fetch(allFolderMessages, prefetch);
-                    ArrayList<GmailMessage> smallMessages = Lists.newArrayListWithCapacity(allFolderMessages.length);
-                    long smallMessagesSize = 0;
-                    for (final Message msg : allFolderMessages) {
-                        final GmailMessage gmsg = (GmailMessage) msg;
-                        final Long msgId = gmsg.getMsgId();
-                        if (!msgids.contains(msgId))
-                            continue;
-                        if (gmsg.getSize() < smallMessageSize) {
-                            smallMessages.add(gmsg);
-                            smallMessagesSize += gmsg.getSize();
-                            if (smallMessagesSize > smallMessageBatchSize) {
-                                folder.fetch((Message[]) smallMessages.toArray(new Message[smallMessages.size()]),
-                                        fetchAll);
-                                if (!targetRoot.getStore().isConnected())
-                                    targetRoot.getStore().connect();
-                                for (GmailMessage message : smallMessages) {
-                                    final List<String> targetPath = getFolderName(folderNameBasedLabels, message);
-                                    futures.add(consumers.getUnchecked(targetPath)
-                                            .submit(new Consumer(this, targetPath, copiedSize, message)));
-                                }
+                    for (FolderBatch batch = nextBatch(nbTaken); batch != FolderBatch.END; batch = nextBatch(
+                            nbTaken)) {
+                        googleLimit.acquire();
+                        final FolderBatch taken = batch;
+                        copies.add(producers.submit(() -> {
+                            try {
+                                copyBatch(taken, consumers, copiedSize);
+                            } finally {
+                                googleLimit.release();
                             }
-                            smallMessages.clear();
-                            smallMessagesSize = 0;
-                        } else {
-                            folder.fetch(new Message[] { gmsg }, fetchAll);
-                            final List<String> targetPath = getFolderName(folderNameBasedLabels, gmsg);
-                            futures.add(consumers.getUnchecked(targetPath)
-                                    .submit(new Consumer(this, targetPath, copiedSize, gmsg)));
-                        }
+                        }));
                     }
-                    for (Future<?> future : futures)
-                        future.get();
-                    folder.close(false);
-                    log.info("Finished folder " + folder.getFullName());
-                } catch (Exception e) {
-                    e.printStackTrace(System.err);
-                    throw new RuntimeException(e);
+                    /* wait for the folders being copied before shutting down */
+                    for (Future<?> copy : copies)
+                        copy.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    /* copyBatch reports its failures */
+                } finally {
+                    producers.shutdown();
                 }
             });
+        } else {
+            producers = Executors.newFixedThreadPool(googlePoolSize);
+            for (int i = 0; i < googlePoolSize; i++) {
+                producers.submit(() -> {
+                    try {
+                        for (FolderBatch batch = nextBatch(nbTaken); batch != FolderBatch.END; batch = nextBatch(
+                                nbTaken)) {
+                            googleLimit.acquire();
+                            try {
+                                copyBatch(batch, consumers, copiedSize);
+                            } finally {
+                                googleLimit.release();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            producers.shutdown();
         }
-        producers.shutdown();
 
-        final float wereTodo = todo.size();
         final int initallyDone = done.size();
         System.err.println();
         final long startTime = System.nanoTime();
         long prevTime = startTime;
         long lastCopied = 0;
+        long controlTime = startTime;
+        long controlCopied = 0;
+        long controlRate = 0;
         boolean finished = false;
         while (!finished) {
             try {
                 finished = producers.awaitTermination(refreshRate, TimeUnit.MILLISECONDS);
                 if (finished) {
-                    for (ExecutorService consumer : consumers.asMap().values())
-                        if (!(finished = consumer.awaitTermination(refreshRate, TimeUnit.MILLISECONDS)))
-                            break;
+                    for (final Lane lane : consumers) {
+                        lane.consumers.shutdown();
+                        finished &= lane.consumers.awaitTermination(refreshRate, TimeUnit.MILLISECONDS);
+                    }
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace(System.err);
@@ -244,16 +505,435 @@ public class Copier {
                 final String rateSinceLast = humanReadableSize(copiedSinceLast * 1000000000L / elapseTimeSinceLast);
                 final String rate = humanReadableSize(copied * 1000000000L / elapseTime);
 
-                final float perCentDone = (float) ((done.size() - initallyDone) * 100) / wereTodo;
+                if (currTime - controlTime >= CONTROL_PERIOD) {
+                    /* additive increase while the throughput improves */
+                    final long periodRate = (copied - controlCopied) * 1000000000L / (currTime - controlTime);
+                    if (periodRate > controlRate) {
+                        googleLimit.increase();
+                        targetLimit.increase();
+                    }
+                    controlRate = periodRate;
+                    controlTime = currTime;
+                    controlCopied = copied;
+                }
+
+                final String progress;
+                if (nbTodo < 0 && !allTaken.get())
+                    /* still discovering messages to copy */
+                    progress = String.format("%d/%d+ done", done.size() - initallyDone, nbTaken.get());
+                else {
+                    final long wereTodo = nbTodo < 0 ? nbTaken.get() : nbTodo;
+                    progress = String.format(Locale.US, "%5.1f%% done",
+                            (float) ((done.size() - initallyDone) * 100) / Math.max(1, wereTodo));
+                }
                 System.err.print(String.format(Locale.US,
-                        "\r%5.1f%% done (%s copied, current rate: %s/s, average rate: %s/s)          ", perCentDone,
-                        copiedString, rateSinceLast, rate));
+                        "\r%s (%s copied, current rate: %s/s, average rate: %s/s, connections: %d/%d GMail,"
+                                + " %d/%d target, in flight: %s)          ",
+                        progress, copiedString, rateSinceLast, rate, googleLimit.getLimit(), googleLimit.getMax(),
+                        targetLimit.getLimit(), targetLimit.getMax(),
+                        humanReadableSize(memoryBudget.getInFlight()).trim()));
             }
         }
 
         System.out.println("finished !!!");
     }
 
+    /**
+     * Take the next batch to copy: a chunk of a folder split by another
+     * producer if any (so that idle producers help with the large folders),
+     * or else the next batch of {@link #todo}.
+     *
+     * @param nbTaken
+     *            incremented by the number of messages of the taken batches of
+     *            {@link #todo}
+     * @return the batch to copy (which must be given to
+     *         {@link #copyBatch}), or {@link FolderBatch#END} once all
+     *         batches and all chunks have been taken
+     * @throws InterruptedException
+     */
+    private FolderBatch nextBatch(final AtomicLong nbTaken) throws InterruptedException {
+        while (true) {
+            final FolderBatch chunk = chunks.poll();
+            if (chunk != null)
+                return chunk;
+            if (allTaken.get()) {
+                /* a folder being split may still add chunks */
+                if (pendingSplits.get() == 0 && chunks.isEmpty())
+                    return FolderBatch.END;
+                final FolderBatch late = chunks.poll(refreshRate, TimeUnit.MILLISECONDS);
+                if (late != null)
+                    return late;
+                continue;
+            }
+            pendingSplits.incrementAndGet();
+            final FolderBatch batch = todo.poll(refreshRate, TimeUnit.MILLISECONDS);
+            if (batch != null && batch != FolderBatch.END) {
+                nbTaken.addAndGet(batch.msgids.size());
+                return batch;
+            }
+            pendingSplits.decrementAndGet();
+            if (batch == FolderBatch.END)
+                allTaken.set(true);
+        }
+    }
+
+    /**
+     * Copy a batch returned by {@link #nextBatch}, first splitting it into
+     * chunks if it is a large folder. The first chunk is copied by the
+     * calling thread, the other ones are left to the other producers.
+     */
+    private void copyBatch(final FolderBatch batch, final Lane[] consumers,
+            final LongAdder copiedSize) {
+        FolderBatch first = batch;
+        if (!batch.isChunk())
+            try {
+                final List<FolderBatch> split = split(batch);
+                first = split.get(0);
+                chunks.addAll(split.subList(1, split.size()));
+            } catch (MessagingException e) {
+                log.warning("Cannot split folder " + batch.folder.getFullName() + ", copying it at once: " + e);
+            } finally {
+                pendingSplits.decrementAndGet();
+            }
+        try {
+            copyFolder(first, consumers, copiedSize);
+        } catch (RuntimeException e) {
+            /* already reported, go on with the other folders */
+        }
+    }
+
+    /**
+     * Split a folder with many messages to copy into chunks of about
+     * {@link #CHUNK_SIZE} messages (UID ranges), each chunk having its own
+     * folder object (and thus connection) so that they can be fetched
+     * concurrently.
+     *
+     * @return the chunks of the folder, or <code>batch</code> alone
+     * @throws MessagingException
+     */
+    private List<FolderBatch> split(final FolderBatch batch) throws MessagingException {
+        if (batch.uids != null || batch.msgids.size() < 2 * CHUNK_SIZE)
+            return Collections.singletonList(batch);
+        final Folder folder = batch.folder;
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        folder.open(Folder.READ_ONLY);
+        try {
+            final int nbChunks = (folder.getMessageCount() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            if (nbChunks < 2)
+                return Collections.singletonList(batch);
+            final int[] firsts = new int[nbChunks];
+            for (int i = 0; i < nbChunks; i++)
+                firsts[i] = i * CHUNK_SIZE + 1;
+            final Message[] bounds = folder.getMessages(firsts);
+            final FetchProfile fp = new FetchProfile();
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(bounds, fp);
+            final List<FolderBatch> split = new ArrayList<>(nbChunks);
+            for (int i = 0; i < nbChunks; i++) {
+                final long firstUid = i == 0 ? 1 : uidFolder.getUID(bounds[i]);
+                final long lastUid = i == nbChunks - 1 ? UIDFolder.LASTUID : uidFolder.getUID(bounds[i + 1]) - 1;
+                split.add(new FolderBatch(folder.getStore().getFolder(folder.getFullName()), batch.msgids, firstUid,
+                        lastUid));
+            }
+            log.info(String.format("Split folder %s in %d chunks", folder.getFullName(), nbChunks));
+            return split;
+        } finally {
+            folder.close(false);
+        }
+    }
+
+    /**
+     * The messages of a folder handed to the consumers during an attempt to
+     * copy the folder, to know where to resume if the attempt fails.
+     */
+    private static final class FolderProgress {
+        final List<Future<?>> futures = new ArrayList<>();
+        final List<Long> uids = new ArrayList<>();
+        /**
+         * the UID of the last message handled (submitted, queued in a batch
+         * of small messages or skipped), or 0
+         */
+        long lastSeen;
+        /**
+         * the UID of the first message of the batch of small messages not
+         * submitted yet, if any
+         */
+        long firstUnsubmitted = Long.MAX_VALUE;
+
+        void submitted(long uid, Future<?> future) {
+            uids.add(uid);
+            futures.add(future);
+        }
+    }
+
+    /**
+     * Copy the messages of a batch, waiting for the end of the copy.
+     *
+     * If the connection to GMail fails, the folder is opened again (after a
+     * backoff delay) and the copy resumes from the first message that was
+     * not handed to the consumers. The messages whose copy failed are tried
+     * again the same way, at most {@link #MAX_MESSAGE_ATTEMPTS} times each,
+     * so that a message that cannot be copied does not stop the folder (it
+     * will be tried again at the next run).
+     */
+    private void copyFolder(final FolderBatch batch, final Lane[] consumers,
+            final LongAdder copiedSize) {
+        final Folder folder = batch.folder;
+        if (batch.isChunk())
+            log.info(String.format("Starting folder %s from UID %d", folder.getFullName(), batch.firstUid));
+        else
+            log.info(String.format("Starting folder %s (%s messages to do)", folder.getFullName(),
+                    batch.msgids.size()));
+
+        /* the number of failed copies of the messages, by UID */
+        final Map<Long, Integer> failures = new HashMap<>();
+        long fromUid = batch.isChunk() ? batch.firstUid : 1;
+        int sourceAttempts = 0;
+        while (true) {
+            final FolderProgress progress = new FolderProgress();
+            Exception sourceFailure = null;
+            try {
+                copyFolderFrom(batch, fromUid, !failures.isEmpty() || sourceAttempts > 0, failures, consumers,
+                        copiedSize, progress);
+            } catch (MessagingException | RuntimeException e) {
+                sourceFailure = e;
+                sourceAttempts++;
+                googleLimit.onError(e);
+            }
+            long resumeUid = sourceFailure == null ? Long.MAX_VALUE
+                    : Math.min(progress.firstUnsubmitted, Math.max(fromUid, progress.lastSeen + 1));
+            for (int i = 0; i < progress.futures.size(); i++)
+                try {
+                    progress.futures.get(i).get();
+                } catch (ExecutionException e) {
+                    final long uid = progress.uids.get(i);
+                    if (failures.merge(uid, 1, Integer::sum) < MAX_MESSAGE_ATTEMPTS)
+                        resumeUid = Math.min(resumeUid, uid);
+                    else
+                        log.severe(String.format("Giving up message with UID %d of folder %s: %s", uid,
+                                folder.getFullName(), e.getCause()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            try {
+                if (folder.isOpen())
+                    folder.close(false);
+            } catch (MessagingException e) {
+                /* the connection is most likely already lost */
+            }
+            if (resumeUid == Long.MAX_VALUE) {
+                log.info("Finished folder " + folder.getFullName());
+                return;
+            }
+            if (sourceFailure != null) {
+                if (sourceAttempts >= retryPolicy.getMaxAttempts() || !RetryPolicy.isTransient(sourceFailure)) {
+                    sourceFailure.printStackTrace(System.err);
+                    throw new RuntimeException(sourceFailure);
+                }
+                log.warning(String.format("Folder %s failed (attempt %d/%d), resuming from UID %d: %s",
+                        folder.getFullName(), sourceAttempts, retryPolicy.getMaxAttempts(), resumeUid,
+                        sourceFailure));
+                try {
+                    retryPolicy.backoff(sourceAttempts);
+                    if (!folder.getStore().isConnected())
+                        folder.getStore().connect();
+                } catch (MessagingException e) {
+                    log.warning("Cannot reconnect to GMail: " + e);
+                }
+            }
+            fromUid = resumeUid;
+        }
+    }
+
+    /**
+     * An attempt to copy the messages of a batch with a UID greater than or
+     * equal to <code>fromUid</code>, handing them to the consumers.
+     *
+     * @param resuming
+     *            whether this is not the first attempt, in which case the
+     *            messages that have been copied are skipped
+     * @param failures
+     *            the number of failed copies of the messages, by UID (the
+     *            messages that failed too often are skipped)
+     * @param progress
+     *            the messages handed to the consumers
+     */
+    private void copyFolderFrom(final FolderBatch batch, final long fromUid, final boolean resuming,
+            final Map<Long, Integer> failures, final Lane[] consumers,
+            final LongAdder copiedSize, final FolderProgress progress) throws MessagingException {
+        final Folder folder = batch.folder;
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final LongHashSet msgids = batch.msgids;
+        if (!folder.isOpen())
+            folder.open(Folder.READ_ONLY);
+        final List<String> folderNameBasedLabels = Splitter.on(folder.getSeparator())
+                .splitToList(folder.getFullName());
+        final Message[] allFolderMessages;
+        if (batch.uids != null)
+            allFolderMessages = Arrays.stream(
+                    uidFolder.getMessagesByUID(Arrays.stream(batch.uids).filter(uid -> uid >= fromUid).toArray()))
+                    .filter(Objects::nonNull).toArray(Message[]::new);
+        else if (fromUid > 1 || batch.isChunk())
+            allFolderMessages = uidFolder.getMessagesByUID(fromUid, batch.isChunk() ? batch.lastUid
+                    : UIDFolder.LASTUID);
+        else
+            allFolderMessages = folder.getMessages();
+        folder.fetch(allFolderMessages, prefetch);
+        final AdaptiveBatcher.Batch<GmailMessage> smallMessages = smallMessageBatcher.newBatch(messages -> {
+            long bytes = 0;
+            for (GmailMessage message : messages)
+                bytes += message.getSize();
+            acquire(memoryBudget, bytes);
+            /* released by the consumers once submitted */
+            int submitted = 0;
+            final long fetchTime;
+            try {
+                /* only the fetch is timed: waiting for the budgets says nothing about GMail */
+                final long start = System.nanoTime();
+                final ByteArray[] contents = fetchContents((IMAPFolder) folder, messages);
+                fetchTime = System.nanoTime() - start;
+                for (; submitted < messages.size(); submitted++) {
+                    final GmailMessage message = messages.get(submitted);
+                    progress.submitted(uidFolder.getUID(message), submit(consumers,
+                            getFolderName(folderNameBasedLabels, message), message, contents[submitted],
+                            copiedSize));
+                }
+            } finally {
+                for (int i = submitted; i < messages.size(); i++)
+                    memoryBudget.release(messages.get(i).getSize());
+            }
+            progress.firstUnsubmitted = Long.MAX_VALUE;
+            return fetchTime;
+        });
+        if (!targetRoot.getStore().isConnected())
+            targetRoot.getStore().connect();
+        for (final Message msg : allFolderMessages) {
+            final GmailMessage gmsg = (GmailMessage) msg;
+            final long uid = uidFolder.getUID(gmsg);
+            /* "n:*" always matches the last message, even if its UID is lower than n */
+            if (uid < fromUid)
+                continue;
+            final long msgId = gmsg.getMsgId();
+            if (!msgids.contains(msgId) || (resuming && done.contains(msgId))
+                    || failures.getOrDefault(uid, 0) >= MAX_MESSAGE_ATTEMPTS) {
+                progress.lastSeen = uid;
+                continue;
+            }
+            if (gmsg.getSize() < smallMessageSize) {
+                if (progress.firstUnsubmitted == Long.MAX_VALUE)
+                    progress.firstUnsubmitted = uid;
+                smallMessages.add(gmsg, gmsg.getSize());
+            } else {
+                /* streamed from the source to the target while appending */
+                progress.submitted(uid,
+                        submit(consumers, getFolderName(folderNameBasedLabels, gmsg), gmsg, null, copiedSize));
+            }
+            progress.lastSeen = uid;
+        }
+        smallMessages.flush();
+    }
+
+    /**
+     * Fetch the content of messages without caching it in the messages,
+     * which are kept by their folder until it is closed: the content is only
+     * referenced until the messages are appended.
+     *
+     * @return the content of each message
+     */
+    private static ByteArray[] fetchContents(final IMAPFolder folder, final List<GmailMessage> messages)
+            throws MessagingException {
+        final int[] numbers = new int[messages.size()];
+        for (int i = 0; i < numbers.length; i++)
+            numbers[i] = messages.get(i).getMessageNumber();
+        return (ByteArray[]) folder.doCommand(p -> {
+            final Response[] r = p.fetch(MessageSet.createMessageSets(numbers), "BODY.PEEK[]");
+            final ByteArray[] contents = new ByteArray[numbers.length];
+            for (int i = 0; i < numbers.length; i++) {
+                final BODY body = FetchResponse.getItem(r, numbers[i], BODY.class);
+                if (body != null)
+                    contents[i] = body.getByteArray();
+            }
+            /* the other handlers must not keep the contents */
+            for (int i = 0; i < r.length; i++)
+                if (r[i] instanceof FetchResponse && ((FetchResponse) r[i]).getItem(BODY.class) != null)
+                    r[i] = null;
+            p.notifyResponseHandlers(r);
+            p.handleResult(r[r.length - 1]);
+            for (int i = 0; i < numbers.length; i++)
+                if (contents[i] == null)
+                    throw new ProtocolException("No content for message " + numbers[i]);
+            return contents;
+        });
+    }
+
+    /**
+     * Wait until <code>bytes</code> bytes fit in <code>budget</code>.
+     *
+     * @throws MessagingException
+     *             if interrupted while waiting
+     */
+    private static void acquire(final ByteBudget budget, final long bytes) throws MessagingException {
+        try {
+            budget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for the consumers", e);
+        }
+    }
+
+    /**
+     * Queue a message to be appended to a target folder, by the consumers of
+     * its size, once it fits in their budget.
+     *
+     * @param content
+     *            the content of the message, or <code>null</code> if it has
+     *            not been fetched
+     * @return the completion of the append of the message
+     * @throws MessagingException
+     *             if interrupted while waiting for the budget
+     */
+    private Future<?> submit(final Lane[] consumers, final List<String> targetPath, final GmailMessage gmsg,
+            final ByteArray content, final LongAdder copiedSize) throws MessagingException {
+        Lane lane = consumers[0];
+        for (int i = 1; i < consumers.length && gmsg.getSize() >= lane.maxSize; i++)
+            lane = consumers[i];
+        acquire(lane.budget, gmsg.getSize());
+        final AppendQueue queue = lane.appendQueues.computeIfAbsent(targetPath, p -> new AppendQueue());
+        final AppendQueue.Pending pending = queue.add(gmsg, content);
+        return lane.consumers.submit(targetPath, new Consumer(this, lane, targetPath, copiedSize, queue, pending));
+    }
+
+    private Lane newLane(String name, int maxSize, int concurrency, long budget) {
+        return new Lane(maxSize, new ByteBudget(budget),
+                new SerialScheduler<>(virtualThreads ? VirtualThreads.newPerTaskExecutor()
+                        : Executors.newFixedThreadPool(concurrency), new AdaptiveLimit(name + " messages",
+                                concurrency, concurrency), targetLimit));
+    }
+
+    /**
+     * The consumers of the messages of a size class, with their own
+     * concurrency limit and budget of bytes in flight.
+     */
+    private static final class Lane {
+        /**
+         * the messages of this lane are smaller than this size
+         */
+        final int maxSize;
+        final ByteBudget budget;
+        /**
+         * the messages ready to be appended, by target folder
+         */
+        final ConcurrentMap<List<String>, AppendQueue> appendQueues = new ConcurrentHashMap<>();
+        final SerialScheduler<List<String>> consumers;
+
+        Lane(int maxSize, ByteBudget budget, SerialScheduler<List<String>> consumers) {
+            this.maxSize = maxSize;
+            this.budget = budget;
+            this.consumers = consumers;
+        }
+    }
+
     /**
      * 
      * @param bytes
@@ -270,36 +950,61 @@ public class Copier {
             return String.format("%,5d MiB", bytes / (1024 * 1024));
     }
 
+    /**
+     * Appends a message to a target folder, together with the other messages
+     * that are ready to be appended to this folder (if any).
+     */
     private static final class Consumer implements Runnable {
-        static final Object notifier = new Object();
-        static final AtomicInteger activeConsumers = new AtomicInteger(0);
         private final List<String> targetPath;
         private final LongAdder copiedSize;
-        private final GmailMessage gmsg;
+        private final AppendQueue queue;
+        private final AppendQueue.Pending pending;
         private final Copier copier;
+        private final Lane lane;
 
-        private Consumer(Copier copier, List<String> targetPath, LongAdder copiedSize, GmailMessage gmsg) {
+        private Consumer(Copier copier, Lane lane, List<String> targetPath, LongAdder copiedSize,
+                AppendQueue queue, AppendQueue.Pending pending) {
+            this.lane = lane;
             this.targetPath = targetPath;
             this.copiedSize = copiedSize;
-            this.gmsg = gmsg;
+            this.queue = queue;
+            this.pending = pending;
             this.copier = copier;
         }
 
         @Override
         public void run() {
             try {
-                synchronized (notifier) {
-                    while (activeConsumers.get() >= copier.targetPoolSize)
-                        notifier.wait();
-                    activeConsumers.incrementAndGet();
-                }
-                copier.copyMessage(gmsg, targetPath);
-                copier.done.add(gmsg.getMsgId());
-                copiedSize.add(gmsg.getSize());
-                synchronized (notifier) {
-                    activeConsumers.decrementAndGet();
-                    notifier.notify();
+                /* the message may have already been appended with a previous batch */
+                while (!pending.taken) {
+                    final List<AppendQueue.Pending> batch = queue.drain(MAX_APPEND_COUNT, MAX_APPEND_SIZE);
+                    try {
+                        append(batch);
+                    } catch (Exception e) {
+                        copier.targetLimit.onError(e);
+                        if (batch.size() == 1)
+                            batch.get(0).failure = e;
+                        else
+                            /* do not let a bad message fail the others, nor append the others twice */
+                            for (AppendQueue.Pending alone : batch)
+                                if (!alone.appended)
+                                    try {
+                                        append(Collections.singletonList(alone));
+                                    } catch (Exception e1) {
+                                        alone.failure = e1;
+                                    }
+                    } finally {
+                        for (AppendQueue.Pending drained : batch) {
+                            lane.budget.release(drained.size);
+                            if (!drained.stream) {
+                                drained.content = null;
+                                copier.memoryBudget.release(drained.size);
+                            }
+                        }
+                    }
                 }
+                if (pending.failure != null)
+                    throw pending.failure;
             } catch (Exception e) {
                 StringWriter sw = new StringWriter();
                 PrintWriter pw = new PrintWriter(sw, true);
@@ -308,44 +1013,291 @@ public class Copier {
                 throw new RuntimeException(e);
             }
         }
+
+        /**
+         * Append a batch, counting the size of the messages appended (even
+         * if the others failed).
+         */
+        private void append(List<AppendQueue.Pending> batch) throws MessagingException {
+            try {
+                copier.appendMessages(batch, targetPath);
+            } finally {
+                for (AppendQueue.Pending pending : batch)
+                    if (pending.appended)
+                        copiedSize.add(pending.size);
+            }
+        }
     }
 
-    private Folder getFolder(List<String> targetPath) {
-        if (targetPath.isEmpty())
-            return targetRoot;
-        List<String> parentPath = targetPath.subList(0, targetPath.size() - 1);
-        Folder parent = cache.get().computeIfAbsent(parentPath, p -> getFolder(p));
+    /**
+     * Append messages to a target folder, with a single MULTIAPPEND command
+     * if the target server supports it, or with one APPEND command per
+     * message otherwise. The messages are in progress (see
+     * {@link #inProgress}) while their command runs, and are done and flagged
+     * as appended as soon as it succeeds; the messages already appended are
+     * skipped.
+     * 
+     * A failed command may still have appended its messages, so they are not
+     * sent again blindly: with {@link #withTrackingHeader()}, those found in
+     * the target folder are flagged as appended and the others are sent
+     * again; otherwise, the append fails and they stay in progress, to be
+     * rolled back.
+     *
+     * @param batch
+     *            the messages to append. The content of the messages to
+     *            stream is read from their source folder (which must be open)
+     *            while it is sent to the target folder.
+     * @param targetPath
+     */
+    protected void appendMessages(final List<AppendQueue.Pending> batch, final List<String> targetPath)
+            throws MessagingException {
+        retryPolicy.run("Appending " + batch.size() + " messages to " + targetPath, () -> {
+            final IMAPFolder targetFolder = (IMAPFolder) targetFolders.get(targetPath);
+            resolveSent(batch, targetFolder);
+            final List<AppendQueue.Pending> remaining = new ArrayList<>();
+            for (final AppendQueue.Pending pending : batch)
+                if (!pending.appended)
+                    remaining.add(pending);
+            if (remaining.size() > 1 && ((IMAPStore) targetRoot.getStore()).hasCapability("MULTIAPPEND")) {
+                appending(remaining, targetPath);
+                multiAppend(remaining, targetFolder, trackingHeader);
+                appended(remaining);
+                return null;
+            }
+            /* one at a time, so that a failure leaves only the failed message in progress */
+            for (final AppendQueue.Pending pending : remaining) {
+                final List<AppendQueue.Pending> single = Collections.singletonList(pending);
+                appending(single, targetPath);
+                if (trackingHeader || !pending.stream)
+                    /* IMAPFolder.appendMessages cannot add a header, nor use the fetched content */
+                    multiAppend(single, targetFolder, trackingHeader);
+                else
+                    appendStreaming(pending.gmsg, targetFolder);
+                appended(single);
+            }
+            return null;
+        }, () -> {
+            if (!targetRoot.getStore().isConnected())
+                targetRoot.getStore().connect();
+        });
+    }
+
+    /**
+     * Resolve the messages of <code>batch</code> sent by a failed command: the
+     * copies stamped with a {@link #TRACKING_HEADER} header are looked for in
+     * <code>targetFolder</code>, those found are recorded as appended and the
+     * others can be sent again.
+     *
+     * @throws MessagingException
+     *             (not transient) if some copies are not stamped, as they
+     *             cannot be told apart from the other messages
+     */
+    private void resolveSent(final List<AppendQueue.Pending> batch, final IMAPFolder targetFolder)
+            throws MessagingException {
+        final Map<Long, AppendQueue.Pending> sent = new HashMap<>();
+        for (final AppendQueue.Pending pending : batch)
+            if (pending.sent && !pending.appended)
+                sent.put(pending.gmsg.getMsgId(), pending);
+        if (sent.isEmpty())
+            return;
+        if (!trackingHeader)
+            throw new MessagingException(String.format(
+                    "%d messages may have been appended to %s by the failed command, not appending them again",
+                    sent.size(), targetFolder.getFullName()));
+        final long[] msgids = new long[sent.size()];
+        int i = 0;
+        for (final long msgid : sent.keySet())
+            msgids[i++] = msgid;
+        final LongHashSet found = new LongHashSet();
+        /* targetFolder is shared by the consumers, and only used to append */
+        final Folder folder = targetRoot.getStore().getFolder(targetFolder.getFullName());
+        folder.open(Folder.READ_ONLY);
         try {
-            Folder folder = parent.getFolder(targetPath.get(targetPath.size() - 1));
-            if (!folder.exists())
-                folder.create(Folder.HOLDS_FOLDERS | Folder.HOLDS_MESSAGES);
-            return folder;
-        } catch (MessagingException e) {
-            throw new RuntimeException(e);
+            findTracked(folder, msgids, found);
+        } finally {
+            folder.close(false);
+        }
+        log.info(String.format("%d of %d messages sent by the failed command have been appended to %s",
+                found.size(), msgids.length, targetFolder.getFullName()));
+        final List<AppendQueue.Pending> appended = new ArrayList<>();
+        for (final Entry<Long, AppendQueue.Pending> entry : sent.entrySet()) {
+            if (found.contains(entry.getKey()))
+                appended.add(entry.getValue());
+            else
+                entry.getValue().sent = false;
         }
+        appended(appended);
     }
 
-    protected void copyMessage(final GmailMessage gmsg, final List<String> targetPath) throws MessagingException {
-        boolean hasFailed = false;
-        while (true)
-            try {
-                Folder targetFolder = cache.get().computeIfAbsent(targetPath, p -> getFolder(p));
-                targetFolder.appendMessages(new Message[] { gmsg });
-                return;
-            } catch (StoreClosedException e) {
-                if (!hasFailed)
-                    // try again once
-                    if (!targetRoot.getStore().isConnected())
-                    targetRoot.getStore().connect();
-                    else
-                    throw e;
-                else
-                    throw e;
+    /**
+     * Record that messages are about to be appended to a target folder: they
+     * are in progress until they are done.
+     */
+    private void appending(final List<AppendQueue.Pending> messages, final List<String> targetPath)
+            throws MessagingException {
+        final long[] msgids = new long[messages.size()];
+        try {
+            for (int i = 0; i < msgids.length; i++) {
+                final AppendQueue.Pending pending = messages.get(i);
+                msgids[i] = pending.gmsg.getMsgId();
+                if (targets != null)
+                    targets.put(msgids[i], targetPath, pending.gmsg.getMessageID(), pending.size, trackingHeader);
             }
+            inProgress.addAll(msgids);
+        } catch (IOException e) {
+            throw new MessagingException("Cannot record the messages in progress", e);
+        }
+        for (final AppendQueue.Pending pending : messages)
+            pending.sent = true;
+    }
+
+    /**
+     * Record that messages have been appended: they are done, and flagged
+     * so that they are not appended again.
+     */
+    private void appended(final List<AppendQueue.Pending> messages) throws MessagingException {
+        final long[] msgids = new long[messages.size()];
+        for (int i = 0; i < msgids.length; i++) {
+            messages.get(i).appended = true;
+            msgids[i] = messages.get(i).gmsg.getMsgId();
+        }
+        try {
+            done.addAll(msgids);
+            inProgress.removeAll(msgids);
+        } catch (IOException e) {
+            throw new MessagingException("Cannot record the copied messages", e);
+        }
+        if (targets != null)
+            for (final long msgid : msgids)
+                targets.remove(msgid);
+    }
+
+    /**
+     * Append all messages of <code>batch</code> with a single MULTIAPPEND
+     * command (RFC 3502), which either appends all of them or none (a plain
+     * APPEND if there is a single message).
+     *
+     * @param tracking
+     *            whether to insert a {@link #TRACKING_HEADER} header in the
+     *            messages
+     */
+    private static void multiAppend(final List<AppendQueue.Pending> batch, final IMAPFolder targetFolder,
+            final boolean tracking) throws MessagingException {
+        final Argument args = new Argument();
+        args.writeString(BASE64MailboxEncoder.encode(targetFolder.getFullName()));
+        for (final AppendQueue.Pending pending : batch) {
+            final GmailMessage gmsg = pending.gmsg;
+            args.writeAtom(flagList(gmsg.getFlags()));
+            final Date date = gmsg.getReceivedDate() != null ? gmsg.getReceivedDate() : gmsg.getSentDate();
+            if (date != null)
+                args.writeString(INTERNALDATE.format(date));
+            final byte[] prefix = tracking ? trackingLine(gmsg.getMsgId()) : new byte[0];
+            final ByteArray content = pending.content;
+            if (pending.stream)
+                args.writeBytes(new StreamingLiteral(gmsg, prefix));
+            else {
+                /* already CRLF-terminated, as sent by GMail */
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream(prefix.length + content.getCount());
+                bytes.write(prefix, 0, prefix.length);
+                bytes.write(content.getBytes(), content.getStart(), content.getCount());
+                args.writeBytes(bytes);
+            }
+        }
+        targetFolder.doCommand(p -> {
+            final Response[] r = p.command("APPEND", args);
+            p.notifyResponseHandlers(r);
+            p.handleResult(r[r.length - 1]);
+            return null;
+        });
+    }
+
+    /**
+     * Adds to <code>found</code> the identifiers of <code>msgids</code> whose
+     * message is in <code>folder</code>.
+     */
+    static void findTracked(final Folder folder, final long[] msgids, final LongHashSet found)
+            throws MessagingException {
+        final SearchTerm[] terms = new SearchTerm[msgids.length];
+        for (int i = 0; i < msgids.length; i++)
+            terms[i] = new HeaderTerm(TRACKING_HEADER, Long.toString(msgids[i]));
+        final Message[] messages = folder.search(terms.length == 1 ? terms[0] : new OrTerm(terms));
+        final FetchProfile fp = new FetchProfile();
+        fp.add(TRACKING_HEADER);
+        folder.fetch(messages, fp);
+        final LongHashSet wanted = new LongHashSet();
+        for (final long msgid : msgids)
+            wanted.add(msgid);
+        for (final Message message : messages) {
+            final String[] values = message.getHeader(TRACKING_HEADER);
+            if (values == null)
+                continue;
+            /* SEARCH HEADER matches substrings */
+            for (final String value : values)
+                try {
+                    final long msgid = Long.parseLong(value.trim());
+                    if (wanted.contains(msgid))
+                        found.add(msgid);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+        }
+    }
+
+    /**
+     * @param msgid
+     *            the google identifier of the message
+     * @return the {@link #TRACKING_HEADER} header line of the message, ending
+     *         with CRLF
+     */
+    private static byte[] trackingLine(final long msgid) {
+        return (TRACKING_HEADER + ": " + msgid + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the IMAP flag list of <code>flags</code>, without \Recent
+     *         (which cannot be set)
+     */
+    private static String flagList(final Flags flags) {
+        final StringBuilder sb = new StringBuilder("(");
+        for (final Flags.Flag flag : flags.getSystemFlags()) {
+            final String name;
+            if (flag == Flags.Flag.ANSWERED)
+                name = "\\Answered";
+            else if (flag == Flags.Flag.DELETED)
+                name = "\\Deleted";
+            else if (flag == Flags.Flag.DRAFT)
+                name = "\\Draft";
+            else if (flag == Flags.Flag.FLAGGED)
+                name = "\\Flagged";
+            else if (flag == Flags.Flag.SEEN)
+                name = "\\Seen";
+            else
+                continue;
+            sb.append(sb.length() == 1 ? "" : " ").append(name);
+        }
+        for (final String flag : flags.getUserFlags())
+            sb.append(sb.length() == 1 ? "" : " ").append(flag);
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Like {@link IMAPFolder#appendMessages(Message[])}, without buffering
+     * (nor reading twice) the content of the message: it is piped from the
+     * source server to the APPEND command, see {@link StreamingLiteral}.
+     */
+    private static void appendStreaming(final GmailMessage gmsg, final IMAPFolder targetFolder)
+            throws MessagingException {
+        final String fullName = targetFolder.getFullName();
+        final Flags flags = gmsg.getFlags();
+        final Date date = gmsg.getReceivedDate() != null ? gmsg.getReceivedDate() : gmsg.getSentDate();
+        final StreamingLiteral literal = new StreamingLiteral(gmsg);
+        targetFolder.doCommand(p -> {
+            p.append(fullName, flags, date, literal);
+            return null;
+        });
     }
 
     /**
-     * 
      * @param folderNameBasedLabels
      *            the labels obtained from the folder name (excluding [Gmail] if
      *            any)
@@ -355,32 +1307,14 @@ public class Copier {
      *         (which does not need to be the root of the store: all copied
      *         messages may be stored in a hierarchy rooted in a sub-folder)
      * @throws MessagingException
+     * @see LabelMapper
      */
-    private static List<String> getFolderName(final List<String> folderNameBasedLabels, final GmailMessage gmsg)
+    private List<String> getFolderName(final List<String> folderNameBasedLabels, final GmailMessage gmsg)
             throws MessagingException {
-        final TreeSet<String> labels = Sets.newTreeSet(String::compareToIgnoreCase);
-        Iterables.addAll(labels, Iterables.transform(Arrays.asList(gmsg.getLabels()), (final String s) -> {
-            if (!s.isEmpty() && s.charAt(0) == '\\')
-                return s.substring(1);
-            else
-                return s;
-        }));
-        labels.addAll(folderNameBasedLabels);
-        labels.remove("INBOX"); // This is a reserved name: we will put
-                                // messages at the root
-        labels.remove("[Gmail]"); // not meaningful
-        for (final String label : Lists.newArrayList(labels)) {
-            if (label.contains("/")) {
-                labels.remove(label);
-                Iterables.addAll(labels, Splitter.on('/').split(label));
-            }
-        }
-        if (labels.size() != 1 && labels.contains("Important"))
-            labels.remove("Important");
-        if (labels.size() != 1 && labels.contains("Sent"))
-            labels.remove("Sent");
-        if (labels.size() != 1 && labels.contains("Messages envoyés"))
-            labels.remove("Messages envoyés");
-        return Lists.newArrayList(labels);
+        final String[] labels = gmsg.getLabels();
+        if (allMailSource && labels.length != 0)
+            /* the folder of the message is only one of its copies */
+            return labelMapper.map(Collections.emptyList(), labels);
+        return labelMapper.map(folderNameBasedLabels, labels);
     }
 }
\ No newline at end of file
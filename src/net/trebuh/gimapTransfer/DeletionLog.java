@@ -0,0 +1,148 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * The progress of the deletion of duplicates (see
+ * {@link DuplicatesFinder#deleteDuplicates(File, boolean)}), so that an
+ * interrupted deletion can be completed before the folders are scanned again:
+ * a message flagged as deleted but not expunged yet would otherwise be
+ * ignored by the next scan while its duplicates would be deleted.
+ *
+ * Each line is either <code>D</code>, the UIDVALIDITY of a folder, the UIDs
+ * that are about to be deleted in this folder and the name of the folder, or
+ * <code>E</code>, the UIDVALIDITY and the name of a folder whose deletions
+ * have all been expunged. The fields are separated by tabs, and each line
+ * ends with a <code>$</code> field so that torn lines are ignored.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class DeletionLog implements Closeable {
+    /**
+     * the deletions of a folder that may not have been expunged
+     */
+    static final class Pending {
+        final long uidValidity;
+        final LongHashSet uids = new LongHashSet();
+
+        private Pending(long uidValidity) {
+            this.uidValidity = uidValidity;
+        }
+
+        /**
+         * @return the UIDs, sorted
+         */
+        long[] sortedUids() {
+            final long[] sorted = uids.toArray();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private static final String END_OF_ENTRY = "$";
+
+    private final File file;
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final FileOutputStream out;
+
+    /**
+     * @param file
+     *            the log, created if it does not exist
+     * @throws IOException
+     */
+    DeletionLog(File file) throws IOException {
+        this.file = file;
+        if (file.isFile())
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                for (String line = in.readLine(); line != null; line = in.readLine())
+                    read(line);
+            }
+        out = new FileOutputStream(file, true);
+    }
+
+    private void read(String line) {
+        final String[] fields = line.split("\t", -1);
+        if (fields.length < 4 || !fields[fields.length - 1].equals(END_OF_ENTRY))
+            return;
+        try {
+            final long uidValidity = Long.parseLong(fields[1]);
+            if (fields[0].equals("D") && fields.length == 5) {
+                Pending entry = pending.get(fields[3]);
+                if (entry == null || entry.uidValidity != uidValidity) {
+                    entry = new Pending(uidValidity);
+                    pending.put(fields[3], entry);
+                }
+                for (final long uid : UIDSet.toArray(UIDSet.parseUIDSets(fields[2])))
+                    entry.uids.add(uid);
+            } else if (fields[0].equals("E"))
+                pending.remove(fields[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+    }
+
+    /**
+     * @return the deletions that may not have been expunged, by folder name
+     */
+    Map<String, Pending> getPending() {
+        return Collections.unmodifiableMap(pending);
+    }
+
+    /**
+     * Record (on the disk) that messages are about to be deleted.
+     *
+     * @param folder
+     *            the full name of the folder
+     * @param uidValidity
+     * @param uids
+     * @throws IOException
+     */
+    void deleting(String folder, long uidValidity, UIDSet[] uids) throws IOException {
+        write("D\t" + uidValidity + '\t' + UIDSet.toString(uids) + '\t' + folder);
+    }
+
+    /**
+     * Record that the messages deleted in a folder have been expunged.
+     *
+     * @throws IOException
+     */
+    void expunged(String folder, long uidValidity) throws IOException {
+        write("E\t" + uidValidity + '\t' + folder);
+        pending.remove(folder);
+    }
+
+    private void write(String entry) throws IOException {
+        out.write((entry + '\t' + END_OF_ENTRY + '\n').getBytes(StandardCharsets.UTF_8));
+        out.getFD().sync();
+    }
+
+    /**
+     * Close and remove the log, once all deletions have been expunged.
+     *
+     * @throws IOException
+     */
+    void delete() throws IOException {
+        close();
+        if (!file.delete())
+            throw new IOException("Cannot delete " + file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
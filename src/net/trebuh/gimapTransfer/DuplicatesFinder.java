@@ -5,18 +5,32 @@ package net.trebuh.gimapTransfer;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.mail.FetchProfile;
 import javax.mail.Flags.Flag;
@@ -26,17 +40,20 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 import javax.mail.internet.MailDateFormat;
 
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multimaps;
 import com.google.common.collect.Ordering;
-import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.UIDSet;
 
 /**
  * @author laurent
@@ -95,37 +112,147 @@ public class DuplicatesFinder {
             }
         }
 
-        private static final FetchProfile FP;
-        static {
-            FetchProfile fp = new FetchProfile();
-            fp.add(IMAPFolder.FetchProfileItem.HEADERS);
-            FP = fp;
-        }
+        /**
+         * the headers identifying a message by default: the others (e.g.,
+         * Received, DKIM-Signature) are much larger and do not make two
+         * messages with these headers and the same size less likely to be
+         * duplicates. The messages without Message-ID are identified by all
+         * their headers.
+         */
+        public static final List<String> IDENTIFYING_HEADERS = ImmutableList.of("Message-ID", "Date", "From", "To",
+                "Subject");
+
+        private static final Pattern WHITESPACES = Pattern.compile("\\s+");
 
         private final ImmutableSetMultimap<String, String> headers;
+        private final int size;
 
-        private MessageSummary(ImmutableSetMultimap<String, String> headers) {
+        private MessageSummary(ImmutableSetMultimap<String, String> headers, int size) {
             this.headers = headers;
+            this.size = size;
         }
 
+        /**
+         * @return the summary of <code>msg</code> on all its headers
+         */
         public static MessageSummary of(Message msg) throws MessagingException {
-            @SuppressWarnings("unchecked")
-            Enumeration<Header> allHeadersEnum = msg.getAllHeaders();
+            return of(msg, null);
+        }
+
+        /**
+         * @param msg
+         * @param names
+         *            the headers to summarize, or <code>null</code> for all
+         *            headers
+         * @return the summary of <code>msg</code>: the headers and the size
+         * @throws MessagingException
+         */
+        public static MessageSummary of(Message msg, List<String> names) throws MessagingException {
             ImmutableSetMultimap.Builder<String, String> builder = ImmutableSetMultimap.builder();
-            while (allHeadersEnum.hasMoreElements()) {
-                Header next = allHeadersEnum.nextElement();
-                builder.put(next.getName(), next.getValue());
-            }
-            return new MessageSummary(builder.build());
+            for (Header header : identifyingHeadersOf(msg, names))
+                builder.put(header.getName(), header.getValue());
+            return new MessageSummary(builder.build(), msg.getSize());
+        }
+
+        /**
+         * @return the headers of <code>msg</code> named in <code>names</code>,
+         *         or all its headers if <code>names</code> is <code>null</code>
+         *         or if <code>msg</code> has no Message-ID: the other headers
+         *         of <code>names</code> (e.g., Date and Subject) are not
+         *         specific enough to identify a message, they could even all
+         *         be missing (the other headers are then loaded, one message
+         *         at a time)
+         */
+        private static List<Header> identifyingHeadersOf(Message msg, List<String> names)
+                throws MessagingException {
+            if (names != null && msg.getHeader("Message-ID") == null)
+                return headersOf(msg, null);
+            return headersOf(msg, names);
         }
 
+        /**
+         * @return the headers of <code>msg</code> named in <code>names</code>
+         *         (all of them if <code>null</code>), without loading the
+         *         other ones
+         */
+        private static List<Header> headersOf(Message msg, List<String> names) throws MessagingException {
+            List<Header> headers = new ArrayList<>();
+            if (names == null) {
+                @SuppressWarnings("unchecked")
+                Enumeration<Header> allHeadersEnum = msg.getAllHeaders();
+                while (allHeadersEnum.hasMoreElements())
+                    headers.add(allHeadersEnum.nextElement());
+            } else
+                for (String name : names) {
+                    String[] values = msg.getHeader(name);
+                    if (values != null)
+                        for (String value : values)
+                            headers.add(new Header(name, value));
+                }
+            return headers;
+        }
+
+        /**
+         * @return the profile fetching all the headers
+         */
         public static FetchProfile getProfile() {
-            return FP;
+            return getProfile(null);
+        }
+
+        /**
+         * @param names
+         *            the headers to fetch, or <code>null</code> for all
+         *            headers
+         * @return the profile fetching what the summaries on
+         *         <code>names</code> need: only these headers
+         *         (BODY.PEEK[HEADER.FIELDS (...)]) and the size
+         */
+        public static FetchProfile getProfile(List<String> names) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.SIZE);
+            if (names == null)
+                fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+            else
+                for (String name : names)
+                    fp.add(name);
+            return fp;
+        }
+
+        /**
+         * A fixed-size summary of a message: a 128-bit hash of its size and
+         * of its headers, normalized (lower-case names, unfolded and trimmed
+         * values) and sorted, so that it does not depend on their order, as
+         * the equality of the summaries. As {@link #of(Message, List)}, all
+         * the headers are used if the message has no Message-ID.
+         *
+         * @param msg
+         * @param names
+         *            the headers to summarize, or <code>null</code> for all
+         *            headers
+         * @return the high and low 64 bits of the fingerprint of
+         *         <code>msg</code>, or <code>null</code> if it has no header
+         *         at all: its size alone does not identify it
+         * @throws MessagingException
+         */
+        public static long[] fingerprint(Message msg, List<String> names) throws MessagingException {
+            TreeSet<String> normalized = new TreeSet<>();
+            for (Header header : identifyingHeadersOf(msg, names)) {
+                String value = header.getValue() == null ? ""
+                        : WHITESPACES.matcher(header.getValue()).replaceAll(" ");
+                normalized.add(header.getName().toLowerCase(Locale.ROOT) + ':' + value.trim());
+            }
+            if (normalized.isEmpty())
+                return null;
+            Hasher hasher = Hashing.murmur3_128().newHasher().putInt(msg.getSize());
+            for (String header : normalized)
+                hasher.putString(header, StandardCharsets.UTF_8).putByte((byte) 0);
+            ByteBuffer hash = ByteBuffer.wrap(hasher.hash().asBytes());
+            return new long[] { hash.getLong(), hash.getLong() };
         }
 
         @Override
         public int hashCode() {
-            return headers.hashCode();
+            return 31 * headers.hashCode() + size;
         }
 
         @Override
@@ -137,7 +264,7 @@ public class DuplicatesFinder {
             if (getClass() != obj.getClass())
                 return false;
             MessageSummary other = (MessageSummary) obj;
-            return headers.equals(other.headers);
+            return size == other.size && headers.equals(other.headers);
         }
 
         @Override
@@ -178,23 +305,107 @@ public class DuplicatesFinder {
         };
     }
 
+    /**
+     * Receives the locations of the duplicated messages found with
+     * {@link DuplicatesFinder#findDuplicates(File, DuplicateLocations)}.
+     */
+    public interface DuplicateLocations {
+        /**
+         * @param folders
+         *            the folders of the copies of a message, in the order of
+         *            {@link Folder#list()} (and by UID in a same folder)
+         * @param uids
+         *            the UIDs of the copies in these folders
+         * @throws IOException
+         */
+        void accept(Folder[] folders, long[] uids) throws IOException;
+    }
+
     private static final Logger log = Logger.getLogger(DuplicatesFinder.class.getName());
+    /**
+     * default number of folders scanned concurrently
+     */
+    private static final int DEFAULT_POOL_SIZE = 4;
+    /**
+     * maximum number of UIDs deleted with a single UID STORE (and UID
+     * EXPUNGE)
+     */
+    private static final int DELETE_BATCH_SIZE = 500;
+    /**
+     * number of (fingerprint, folder, UID) entries sorted in memory by
+     * {@link #findDuplicates(File, DuplicateLocations)} (32 MiB)
+     */
+    private static final int SORT_RUN_SIZE = 1024 * 1024;
+    /**
+     * number of messages of a folder whose headers are loaded at once by
+     * {@link #findDuplicates(File, DuplicateLocations)}
+     */
+    private static final int SCAN_WINDOW = 1000;
     private final Folder rootFolder;
     private final Set<String> ignoredFolders;
+    private final int poolSize;
+    /**
+     * the headers compared to find duplicates (with the size), or
+     * <code>null</code> for all headers
+     */
+    private final List<String> headers;
+    private final FetchProfile profile;
 
     /**
      * 
      */
     public DuplicatesFinder(Folder rootFolder, Set<String> ignoredFolders) {
+        this(rootFolder, ignoredFolders, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize
+     *            the number of folders scanned concurrently, each of them
+     *            using its own connection
+     */
+    public DuplicatesFinder(Folder rootFolder, Set<String> ignoredFolders, int poolSize) {
+        this(rootFolder, ignoredFolders, poolSize, MessageSummary.IDENTIFYING_HEADERS);
+    }
+
+    /**
+     * @param poolSize
+     *            the number of folders scanned concurrently, each of them
+     *            using its own connection
+     * @param headers
+     *            the headers compared (with the size of the messages) to find
+     *            duplicates, or <code>null</code> to compare all headers
+     *            (which are much larger to download)
+     */
+    public DuplicatesFinder(Folder rootFolder, Set<String> ignoredFolders, int poolSize, List<String> headers) {
+        if (poolSize < 1)
+            throw new IllegalArgumentException("Invalid pool size: " + poolSize);
         this.rootFolder = rootFolder;
         this.ignoredFolders = ImmutableSet.copyOf(ignoredFolders);
+        this.poolSize = poolSize;
+        this.headers = headers == null ? null : ImmutableList.copyOf(headers);
+        this.profile = MessageSummary.getProfile(this.headers);
     }
 
     /**
      * @param args
+     *            <code>[--pool-size &lt;n&gt;] [--delete|--dry-run|--external]</code>
      * @throws MessagingException
      */
-    public static void main(String[] args) throws MessagingException {
+    public static void main(String[] args) throws MessagingException, IOException {
+        int poolSize = DEFAULT_POOL_SIZE;
+        if (args.length > 1 && args[0].equals("--pool-size")) {
+            try {
+                poolSize = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                poolSize = 0;
+            }
+            if (poolSize < 1) {
+                System.err.println("Invalid pool size: " + args[1]);
+                System.err.println("Usage: [--pool-size <n>] [--delete|--dry-run|--external]");
+                System.exit(1);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         log.setLevel(Level.ALL);
         final Properties props = System.getProperties();
         final Session instance = Session.getInstance(props, new ConsolePasswordAuthenticator());
@@ -205,8 +416,27 @@ public class DuplicatesFinder {
         Folder rootFolder = store.getDefaultFolder();
         log.info("Looking for duplicates...");
         ImmutableSet<String> ignoredFolders = ImmutableSet.of("Contacts", "EmailedContacts", "Calendrier");
-        // new DuplicatesFinder(rootFolder, ignoredFolders).deleteDuplicates();
-        Map<MessageSummary, List<Folder>> duplicates = new DuplicatesFinder(rootFolder, ignoredFolders)
+        if (args.length > 0 && (args[0].equals("--delete") || args[0].equals("--dry-run"))) {
+            final boolean dryRun = args[0].equals("--dry-run");
+            int deleted = new DuplicatesFinder(rootFolder, ignoredFolders, poolSize)
+                    .deleteDuplicates(new File("./deletions.txt"), dryRun);
+            System.out.println(String.format(dryRun ? "Found %d duplicates to delete" : "Deleted %d duplicates",
+                    deleted));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--external")) {
+            final int[] nbDuplicates = { 0 };
+            new DuplicatesFinder(rootFolder, ignoredFolders, poolSize).findDuplicates(
+                    new File(System.getProperty("java.io.tmpdir")), (folders, uids) -> {
+                        nbDuplicates[0]++;
+                        System.out.println("Duplicated message:");
+                        for (int i = 0; i < folders.length; i++)
+                            System.out.println(String.format("  in %s (UID %d)", folders[i].getFullName(), uids[i]));
+                    });
+            System.out.println(String.format("Found %d duplicates", nbDuplicates[0]));
+            return;
+        }
+        Map<MessageSummary, List<Folder>> duplicates = new DuplicatesFinder(rootFolder, ignoredFolders, poolSize)
                 .findDuplicates();
         System.out.println(String.format("Found %d duplicates:", duplicates.keySet().size()));
         Ordering<Entry<MessageSummary, List<Folder>>> duplicatesOrd = Ordering.from(String::compareTo)
@@ -230,82 +460,452 @@ public class DuplicatesFinder {
      * @throws MessagingException
      */
     public Map<MessageSummary, List<Folder>> findDuplicates() throws MessagingException {
-        ListMultimap<MessageSummary, Folder> summaries = ArrayListMultimap.create();
-        log.info("Indexing messages...");
-        find(rootFolder, summaries);
-        log.info(String.format("Found %d different message summaries (and %d messages)", summaries.keySet().size(),
-                summaries.size()));
-        /* removing non-duplicates */
-
-        Iterator<Entry<MessageSummary, List<Folder>>> iterator = Multimaps.asMap(summaries).entrySet().iterator();
-        while (iterator.hasNext())
-            if (iterator.next().getValue().size() < 2)
-                iterator.remove();
-        return Multimaps.asMap(summaries);
+        final List<Folder> folders = new ArrayList<>();
+        list(rootFolder, folders);
+        final ConcurrentFingerprintMap fingerprints = new ConcurrentFingerprintMap();
+        final Map<MessageSummary, List<Folder>> duplicates = new HashMap<>();
+        final AtomicLong nbMessages = new AtomicLong();
+        log.info(String.format("Indexing messages of %d folders...", folders.size()));
+        final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < folders.size(); i++) {
+            final int folderId = i;
+            futures.add(pool.submit(() -> {
+                nbMessages.addAndGet(find(folderId, folders, fingerprints, duplicates));
+                return null;
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            throw new MessagingException("Interrupted while indexing messages", e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            if (e.getCause() instanceof MessagingException)
+                throw (MessagingException) e.getCause();
+            throw new MessagingException("Failed to index messages", e);
+        }
+        log.info(String.format("Found %d different message summaries (and %d messages)", fingerprints.size(),
+                nbMessages.get()));
+        return duplicates;
     }
 
     /**
-     * Register all messages in folder and its sub-folders in accumulator,
-     * mapping for each message summary the folder(s) in which it has been seen.
-     * If a same message summary is seen multiple times in a folder, it will be
-     * reported multiple times.
+     * Like {@link #findDuplicates()}, with a bounded amount of memory
+     * whatever the number of messages: the (fingerprint, folder, UID) of the
+     * messages are sorted on the disk (see {@link ExternalFingerprintSort}),
+     * and the headers of a folder are loaded by windows of
+     * {@link #SCAN_WINDOW} messages.
      * 
-     * @param folder
-     * @param accumulator
+     * @param tmpDir
+     *            where to write the sorted runs
+     * @param consumer
+     *            receives the locations of each duplicated message
      * @throws MessagingException
+     * @throws IOException
+     *             if the runs cannot be written or read
      */
-    private void find(Folder folder, ListMultimap<MessageSummary, Folder> accumulator) throws MessagingException {
+    public void findDuplicates(File tmpDir, DuplicateLocations consumer) throws MessagingException, IOException {
+        final List<Folder> folders = new ArrayList<>();
+        list(rootFolder, folders);
+        log.info(String.format("Indexing messages of %d folders...", folders.size()));
+        try (ExternalFingerprintSort sort = new ExternalFingerprintSort(tmpDir, SORT_RUN_SIZE)) {
+            final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < folders.size(); i++) {
+                final int folderId = i;
+                futures.add(pool.submit(() -> {
+                    scan(folderId, folders.get(folderId), sort);
+                    return null;
+                }));
+            }
+            pool.shutdown();
+            try {
+                for (Future<?> future : futures)
+                    future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                throw new MessagingException("Interrupted while indexing messages", e);
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                if (e.getCause() instanceof MessagingException)
+                    throw (MessagingException) e.getCause();
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new MessagingException("Failed to index messages", e);
+            }
+            log.info(String.format("Sorting the fingerprints of %d messages...", sort.size()));
+            sort.forEachDuplicate((high, low, locations) -> {
+                /* the folders are scanned concurrently: the order added is not reproducible */
+                Arrays.sort(locations);
+                final Folder[] where = new Folder[locations.length];
+                final long[] uids = new long[locations.length];
+                for (int i = 0; i < locations.length; i++) {
+                    where[i] = folders.get((int) (locations[i] >>> 32));
+                    uids[i] = locations[i] & 0xFFFFFFFFL;
+                }
+                consumer.accept(where, uids);
+            });
+        }
+    }
+
+    /**
+     * Add the (fingerprint, folder, UID) of the messages of a folder to
+     * <code>sort</code>.
+     */
+    private void scan(int folderId, Folder folder, ExternalFingerprintSort sort)
+            throws MessagingException, IOException {
+        log.info("Loading messages of folder " + folder.getFullName() + "...");
+        folder.open(Folder.READ_ONLY);
+        try {
+            final int count = folder.getMessageCount();
+            final FetchProfile fp = MessageSummary.getProfile(headers);
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            /* only the messages of the current window are referenced */
+            for (int from = 1; from <= count; from += SCAN_WINDOW) {
+                final Message[] window = folder.getMessages(from, Math.min(count, from + SCAN_WINDOW - 1));
+                folder.fetch(window, fp);
+                for (Message message : window) {
+                    final long[] fingerprint = MessageSummary.fingerprint(message, headers);
+                    if (fingerprint == null)
+                        continue;
+                    final long location = (long) folderId << 32 | ((UIDFolder) folder).getUID(message);
+                    synchronized (sort) {
+                        sort.add(fingerprint[0], fingerprint[1], location);
+                    }
+                    /* the headers are not needed anymore */
+                    ((IMAPMessage) message).invalidateHeaders();
+                }
+            }
+        } finally {
+            folder.close(false);
+        }
+    }
+
+    /**
+     * Add to <code>folders</code> the folders holding messages in
+     * <code>folder</code> and its sub-folders, except the ignored ones.
+     */
+    private void list(Folder folder, List<Folder> folders) throws MessagingException {
         if (ignoredFolders.contains(folder.getFullName()))
             return;
-        if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
-            log.info("Loading messages of folder " + folder.getFullName() + "...");
+        if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0)
+            folders.add(folder);
+        if ((folder.getType() & Folder.HOLDS_FOLDERS) != 0)
+            for (Folder subFolder : folder.list())
+                list(subFolder, folders);
+    }
+
+    /**
+     * Register the fingerprints of all messages of a folder in
+     * <code>fingerprints</code>, mapped to the folder in which they have been
+     * seen first, and add the messages already seen to
+     * <code>duplicates</code>, mapping their summary to the folders in which
+     * they have been seen. If a same message summary is seen multiple times
+     * in a folder, it will be reported multiple times.
+     * 
+     * A folder that cannot be loaded is reported on the standard error and
+     * skipped (with the messages indexed before the failure), so that the
+     * others are still indexed.
+     * 
+     * @param folderId
+     *            the index of the folder in <code>folders</code>
+     * @param folders
+     * @param fingerprints
+     * @param duplicates
+     *            the duplicates found so far (guarded by itself)
+     * @return the number of messages of the folder
+     * @throws MessagingException
+     */
+    private int find(int folderId, List<Folder> folders, ConcurrentFingerprintMap fingerprints,
+            Map<MessageSummary, List<Folder>> duplicates) throws MessagingException {
+        final Folder folder = folders.get(folderId);
+        log.info("Loading messages of folder " + folder.getFullName() + "...");
+        Message[] messages = new Message[0];
+        try {
             if (!folder.isOpen())
                 folder.open(Folder.READ_ONLY);
-            Message[] messages = folder.getMessages();
-            folder.fetch(messages, MessageSummary.getProfile());
+            messages = folder.getMessages();
+            folder.fetch(messages, profile);
             log.info("Indexing messages of folder " + folder.getFullName() + "...");
-            try {
-                for (Message message : messages)
-                    accumulator.put(MessageSummary.of(message), folder);
-                folder.close(false);
-            } catch (MessagingException e) {
-                System.err.println("Issue found while loading messages of folder " + folder.getFullName() + ": ");
-                e.printStackTrace(System.err);
+            for (Message message : messages) {
+                final long[] fingerprint = MessageSummary.fingerprint(message, headers);
+                if (fingerprint == null)
+                    continue;
+                final int first = fingerprints.putIfAbsent(fingerprint[0], fingerprint[1], folderId);
+                if (first < 0)
+                    continue;
+                final MessageSummary summary = MessageSummary.of(message, headers);
+                synchronized (duplicates) {
+                    List<Folder> seenIn = duplicates.get(summary);
+                    if (seenIn == null) {
+                        seenIn = new ArrayList<>();
+                        seenIn.add(folders.get(first));
+                        duplicates.put(summary, seenIn);
+                    }
+                    seenIn.add(folder);
+                }
             }
+        } catch (MessagingException e) {
+            /* the other folders are still indexed */
+            System.err.println("Issue found while loading messages of folder " + folder.getFullName() + ": ");
+            e.printStackTrace(System.err);
+        } finally {
+            if (folder.isOpen())
+                folder.close(false);
         }
-        if ((folder.getType() & Folder.HOLDS_FOLDERS) != 0)
-            for (Folder subFolder : folder.list())
-                find(subFolder, accumulator);
+        return messages.length;
     }
 
-    private void deleteDuplicates() throws MessagingException {
-        this.deleteDuplicates(rootFolder, Sets.newHashSet());
+    /**
+     * Delete the messages already seen in a previous folder (in the order of
+     * {@link Folder#list()}), keeping a single copy of each message.
+     * 
+     * The UIDs of the duplicates of each folder are deleted in batches, with
+     * a UID STORE and (if the server supports UIDPLUS) a UID EXPUNGE of these
+     * UIDs only. Each batch is recorded in <code>logFile</code> beforehand,
+     * so that the deletions of an interrupted run are completed by the next
+     * run before the folders are scanned again.
+     * 
+     * @param logFile
+     *            the log of the deletions, removed once all of them have been
+     *            expunged
+     * @param dryRun
+     *            if <code>true</code>, only report the duplicates that would
+     *            be deleted (on the standard output)
+     * @return the number of duplicates deleted (or to delete)
+     * @throws MessagingException
+     * @throws IOException
+     *             if the log cannot be read or written
+     */
+    public int deleteDuplicates(File logFile, boolean dryRun) throws MessagingException, IOException {
+        final DeletionLog deletionLog = dryRun ? null : new DeletionLog(logFile);
+        if (deletionLog != null)
+            completeDeletions(deletionLog);
+        final List<Folder> folders = new ArrayList<>();
+        list(rootFolder, folders);
+        final ConcurrentFingerprintMap seen = new ConcurrentFingerprintMap();
+        final KeptCopies kept = new KeptCopies(folders);
+        int nbDuplicates = 0;
+        for (int folderId = 0; folderId < folders.size(); folderId++)
+            nbDuplicates += deleteDuplicates(folderId, folders.get(folderId), seen, kept, deletionLog);
+        if (deletionLog != null)
+            deletionLog.delete();
+        return nbDuplicates;
     }
 
-    private void deleteDuplicates(Folder folder, Set<MessageSummary> seen) throws MessagingException {
-        if (ignoredFolders.contains(folder.getFullName()))
-            return;
-        if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
-            log.info("Loading messages of folder " + folder.getFullName() + "...");
-            if (!folder.isOpen())
+    /**
+     * Complete the deletions recorded in <code>deletionLog</code> that may
+     * not have been expunged.
+     */
+    private void completeDeletions(DeletionLog deletionLog) throws MessagingException, IOException {
+        for (Entry<String, DeletionLog.Pending> entry : new ArrayList<>(deletionLog.getPending().entrySet())) {
+            final IMAPFolder folder = (IMAPFolder) rootFolder.getStore().getFolder(entry.getKey());
+            if (folder.exists()) {
                 folder.open(Folder.READ_WRITE);
+                try {
+                    if (folder.getUIDValidity() == entry.getValue().uidValidity) {
+                        log.info("Completing the interrupted deletion of duplicates in " + folder.getFullName());
+                        delete(folder, entry.getValue().sortedUids(), null);
+                    } else
+                        log.warning("The UIDs of " + folder.getFullName()
+                                + " have changed, the interrupted deletion of duplicates cannot be completed");
+                } finally {
+                    folder.close(false);
+                }
+            }
+            deletionLog.expunged(entry.getKey(), entry.getValue().uidValidity);
+        }
+    }
+
+    /**
+     * The locations (folder index and UID) of the copies kept by
+     * {@link DuplicatesFinder#deleteDuplicates(File, boolean)}, indexed by
+     * the values of its fingerprint map.
+     */
+    private static final class KeptCopies {
+        private final List<Folder> folders;
+        private long[] locations = new long[1024];
+        private int size;
+
+        KeptCopies(List<Folder> folders) {
+            this.folders = folders;
+        }
+
+        /**
+         * @return the index of the new location
+         */
+        int add(int folderId, long uid) {
+            if (size == locations.length)
+                locations = Arrays.copyOf(locations, size * 2);
+            locations[size] = (long) folderId << 32 | uid;
+            return size++;
+        }
+
+        int folderId(int index) {
+            return (int) (locations[index] >>> 32);
+        }
+
+        long uid(int index) {
+            return locations[index] & 0xFFFFFFFFL;
+        }
+
+        Folder folder(int index) {
+            return folders.get(folderId(index));
+        }
+    }
+
+    /**
+     * Delete the messages of <code>folder</code> already in
+     * <code>seen</code>, and add the others to <code>seen</code>. The
+     * messages flagged as deleted are ignored.
+     * 
+     * A message is only deleted if it has a Message-ID and if the summary of
+     * the copy kept (see {@link MessageSummary#of(Message, List)}) is equal
+     * to its own: a collision of fingerprints or a kept copy deleted since it
+     * was seen leaves it in place.
+     * 
+     * @param folderId
+     *            the index of <code>folder</code> in <code>kept</code>
+     * @param deletionLog
+     *            <code>null</code> for a dry run
+     * @return the number of duplicates
+     */
+    private int deleteDuplicates(int folderId, Folder folder, ConcurrentFingerprintMap seen, KeptCopies kept,
+            DeletionLog deletionLog) throws MessagingException, IOException {
+        log.info("Loading messages of folder " + folder.getFullName() + "...");
+        folder.open(deletionLog == null ? Folder.READ_ONLY : Folder.READ_WRITE);
+        try {
             Message[] messages = folder.getMessages();
-            folder.fetch(messages, MessageSummary.getProfile());
+            FetchProfile fp = MessageSummary.getProfile(headers);
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            fp.add(FetchProfile.Item.FLAGS);
+            folder.fetch(messages, fp);
             log.info("Indexing messages of folder " + folder.getFullName() + "...");
-            try {
-                for (Message message : messages) {
-                    if (!seen.add(MessageSummary.of(message)))
-                        message.setFlag(Flag.DELETED, true);
+            final Map<Integer, Map<Long, List<Message>>> candidates = new HashMap<>();
+            for (Message message : messages) {
+                if (message.isSet(Flag.DELETED))
+                    continue;
+                final long[] fingerprint = MessageSummary.fingerprint(message, headers);
+                if (fingerprint == null)
+                    continue;
+                final long uid = ((UIDFolder) folder).getUID(message);
+                final int first = seen.putIfAbsent(fingerprint[0], fingerprint[1], kept.size);
+                if (first < 0) {
+                    kept.add(folderId, uid);
+                    continue;
                 }
-                folder.close(true);
-            } catch (MessagingException e) {
-                System.err.println("Issue found while loading messages of folder " + folder.getFullName() + ": ");
-                e.printStackTrace(System.err);
+                if (message.getHeader("Message-ID") == null) {
+                    log.info("Not deleting a possible duplicate without Message-ID: UID " + uid + " in "
+                            + folder.getFullName());
+                    continue;
+                }
+                candidates.computeIfAbsent(first, k -> new HashMap<>())
+                        .computeIfAbsent(kept.uid(first), k -> new ArrayList<>()).add(message);
+            }
+            final LongHashSet duplicates = new LongHashSet();
+            for (Entry<Integer, Map<Long, List<Message>>> entry : candidates.entrySet())
+                confirmDuplicates(folderId, folder, kept.folderId(entry.getKey()), kept.folder(entry.getKey()),
+                        entry.getValue(), duplicates, deletionLog == null);
+            if (deletionLog != null && !duplicates.isEmpty()) {
+                final long[] uids = duplicates.toArray();
+                Arrays.sort(uids);
+                delete((IMAPFolder) folder, uids, deletionLog);
             }
+            if (!duplicates.isEmpty())
+                log.info(String.format("%d duplicates %s in %s", duplicates.size(),
+                        deletionLog == null ? "to delete" : "deleted", folder.getFullName()));
+            return duplicates.size();
+        } finally {
+            folder.close(false);
         }
-        if ((folder.getType() & Folder.HOLDS_FOLDERS) != 0)
-            for (Folder subFolder : folder.list())
-                deleteDuplicates(subFolder, seen);
+    }
+
+    /**
+     * Add to <code>duplicates</code> the UIDs of the candidates whose summary
+     * is equal to the one of the copy kept in <code>keptFolder</code>.
+     * 
+     * @param candidates
+     *            the messages of the open <code>folder</code>, by UID of the
+     *            copy kept
+     * @param print
+     *            if <code>true</code>, print the confirmed duplicates
+     */
+    private void confirmDuplicates(int folderId, Folder folder, int keptFolderId, Folder keptFolder,
+            Map<Long, List<Message>> candidates, LongHashSet duplicates, boolean print) throws MessagingException {
+        final long[] keptUids = new long[candidates.size()];
+        int i = 0;
+        for (long uid : candidates.keySet())
+            keptUids[i++] = uid;
+        final boolean sameFolder = keptFolderId == folderId;
+        final Folder opened = sameFolder ? folder : folder.getStore().getFolder(keptFolder.getFullName());
+        if (!sameFolder)
+            opened.open(Folder.READ_ONLY);
+        try {
+            final Message[] keptMessages = ((UIDFolder) opened).getMessagesByUID(keptUids);
+            final List<Message> found = new ArrayList<>();
+            for (Message keptMessage : keptMessages)
+                if (keptMessage != null)
+                    found.add(keptMessage);
+            opened.fetch(found.toArray(new Message[found.size()]), profile);
+            for (i = 0; i < keptUids.length; i++) {
+                if (keptMessages[i] == null || keptMessages[i].isExpunged())
+                    continue;
+                final MessageSummary keptSummary = MessageSummary.of(keptMessages[i], headers);
+                for (Message message : candidates.get(keptUids[i])) {
+                    final MessageSummary summary = MessageSummary.of(message, headers);
+                    if (!summary.equals(keptSummary)) {
+                        log.info("Not deleting a message whose fingerprint only matches the one of UID "
+                                + keptUids[i] + " in " + keptFolder.getFullName() + ": " + summary);
+                        continue;
+                    }
+                    duplicates.add(((UIDFolder) folder).getUID(message));
+                    if (print)
+                        System.out.println(summary + "\n  in " + folder.getFullName());
+                }
+            }
+        } finally {
+            if (!sameFolder)
+                opened.close(false);
+        }
+    }
+
+    /**
+     * Delete messages of an open folder, by batches of
+     * {@link #DELETE_BATCH_SIZE} UIDs, and record it in
+     * <code>deletionLog</code> (if not <code>null</code>).
+     * 
+     * @param uids
+     *            sorted UIDs
+     */
+    private static void delete(IMAPFolder folder, long[] uids, DeletionLog deletionLog)
+            throws MessagingException, IOException {
+        final long uidValidity = folder.getUIDValidity();
+        final boolean uidPlus = ((IMAPStore) folder.getStore()).hasCapability("UIDPLUS");
+        for (int from = 0; from < uids.length; from += DELETE_BATCH_SIZE) {
+            final UIDSet[] batch = UIDSet
+                    .createUIDSets(Arrays.copyOfRange(uids, from, Math.min(uids.length, from + DELETE_BATCH_SIZE)));
+            if (deletionLog != null)
+                deletionLog.deleting(folder.getFullName(), uidValidity, batch);
+            folder.doCommand(p -> {
+                p.simpleCommand("UID STORE " + UIDSet.toString(batch) + " +FLAGS.SILENT (\\Deleted)", null);
+                if (uidPlus)
+                    p.uidexpunge(batch);
+                return null;
+            });
+            log.fine(String.format("%d/%d duplicates deleted in %s", Math.min(uids.length, from + DELETE_BATCH_SIZE),
+                    uids.length, folder.getFullName()));
+        }
+        if (!uidPlus)
+            /* also expunges the messages that were already flagged as deleted */
+            folder.expunge();
+        if (deletionLog != null)
+            deletionLog.expunged(folder.getFullName(), uidValidity);
     }
 
 }
@@ -0,0 +1,292 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Groups the locations of 128-bit fingerprints that appear several times,
+ * with a bounded amount of memory whatever the number of fingerprints: the
+ * (fingerprint, location) entries are sorted by runs of
+ * {@link #runSize} entries written to temporary files, which are then merged.
+ *
+ * A location is an opaque <code>long</code>, e.g., a folder number and a UID.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class ExternalFingerprintSort implements Closeable {
+    /**
+     * Receives the fingerprints that appear several times.
+     */
+    public interface DuplicatesConsumer {
+        /**
+         * @param high
+         *            the 64 high bits of the fingerprint
+         * @param low
+         *            the 64 low bits of the fingerprint
+         * @param locations
+         *            the locations of the fingerprint (at least two), in the
+         *            order they were added
+         * @throws IOException
+         */
+        void accept(long high, long low, long[] locations) throws IOException;
+    }
+
+    /**
+     * maximum number of runs merged at once, more runs are first merged into
+     * larger runs
+     */
+    private static final int MAX_FAN_IN = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * size of an entry in the runs: the fingerprint, the location and the
+     * sequence number of the entry (to keep the order of the locations)
+     */
+    private static final int FIELDS = 4;
+
+    private final File tmpDir;
+    private final int runSize;
+    /**
+     * the entries of the current run, {@link #FIELDS} longs per entry
+     */
+    private final long[] run;
+    private int runLength;
+    private long sequence;
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * @param tmpDir
+     *            where to write the runs
+     * @param runSize
+     *            the number of entries sorted in memory (using
+     *            <code>32 * runSize</code> bytes)
+     */
+    public ExternalFingerprintSort(File tmpDir, int runSize) {
+        if (runSize < 1 || runSize > Integer.MAX_VALUE / FIELDS)
+            throw new IllegalArgumentException("Invalid run size: " + runSize);
+        this.tmpDir = tmpDir;
+        this.runSize = runSize;
+        this.run = new long[runSize * FIELDS];
+    }
+
+    /**
+     * @param high
+     *            the 64 high bits of the fingerprint
+     * @param low
+     *            the 64 low bits of the fingerprint
+     * @param location
+     * @throws IOException
+     *             if a run cannot be written
+     */
+    public void add(long high, long low, long location) throws IOException {
+        final int i = runLength * FIELDS;
+        run[i] = high;
+        run[i + 1] = low;
+        run[i + 2] = location;
+        run[i + 3] = sequence++;
+        if (++runLength == runSize)
+            flushRun();
+    }
+
+    /**
+     * @return the number of entries added
+     */
+    public long size() {
+        return sequence;
+    }
+
+    private void flushRun() throws IOException {
+        if (runLength == 0)
+            return;
+        sort(run, 0, runLength - 1);
+        final File file = File.createTempFile("run", ".bin", tmpDir);
+        runs.add(file);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            for (int i = 0; i < runLength * FIELDS; i++)
+                out.writeLong(run[i]);
+        }
+        runLength = 0;
+    }
+
+    /**
+     * Report the fingerprints added several times, in the order of the
+     * fingerprints. No entry can be added afterwards.
+     *
+     * @param consumer
+     * @throws IOException
+     */
+    public void forEachDuplicate(DuplicatesConsumer consumer) throws IOException {
+        flushRun();
+        while (runs.size() > MAX_FAN_IN) {
+            final List<File> merged = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+            final File file = File.createTempFile("run", ".bin", tmpDir);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+                merge(merged, (entry) -> {
+                    for (final long field : entry)
+                        out.writeLong(field);
+                });
+            }
+            for (final File f : merged)
+                f.delete();
+            runs.removeAll(merged);
+            runs.add(file);
+        }
+        final long[] group = { 0, 0 };
+        final LongList locations = new LongList();
+        merge(runs, (entry) -> {
+            if (locations.size > 0 && (entry[0] != group[0] || entry[1] != group[1])) {
+                if (locations.size > 1)
+                    consumer.accept(group[0], group[1], locations.toArray());
+                locations.size = 0;
+            }
+            group[0] = entry[0];
+            group[1] = entry[1];
+            locations.add(entry[2]);
+        });
+        if (locations.size > 1)
+            consumer.accept(group[0], group[1], locations.toArray());
+    }
+
+    private interface EntryConsumer {
+        void accept(long[] entry) throws IOException;
+    }
+
+    /**
+     * A run being merged, with its current entry.
+     */
+    private static final class RunReader implements Comparable<RunReader> {
+        final DataInputStream in;
+        final long[] entry = new long[FIELDS];
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return <code>false</code> at the end of the run
+         */
+        boolean next() throws IOException {
+            try {
+                for (int i = 0; i < FIELDS; i++)
+                    entry[i] = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return compare(entry, 0, o.entry, 0);
+        }
+    }
+
+    private static void merge(List<File> files, EntryConsumer consumer) throws IOException {
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, files.size()));
+        final List<RunReader> readers = new ArrayList<>();
+        try {
+            for (final File file : files) {
+                final RunReader reader = new RunReader(file);
+                readers.add(reader);
+                if (reader.next())
+                    queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+                final RunReader reader = queue.poll();
+                consumer.accept(reader.entry);
+                if (reader.next())
+                    queue.add(reader);
+            }
+        } finally {
+            for (final RunReader reader : readers)
+                reader.in.close();
+        }
+    }
+
+    /**
+     * Compares the entries by fingerprint (unsigned), then by sequence
+     * number.
+     */
+    private static int compare(long[] a, int i, long[] b, int j) {
+        int c = Long.compareUnsigned(a[i], b[j]);
+        if (c == 0)
+            c = Long.compareUnsigned(a[i + 1], b[j + 1]);
+        if (c == 0)
+            c = Long.compare(a[i + 3], b[j + 3]);
+        return c;
+    }
+
+    /**
+     * Quicksort of the entries <code>from</code> to <code>to</code>
+     * (inclusive) of <code>entries</code>.
+     */
+    private static void sort(long[] entries, int from, int to) {
+        while (from < to) {
+            swap(entries, from + (to - from) / 2, to);
+            int store = from;
+            for (int i = from; i < to; i++)
+                if (compare(entries, i * FIELDS, entries, to * FIELDS) < 0)
+                    swap(entries, i, store++);
+            swap(entries, store, to);
+            /* recurse on the smaller part to bound the stack depth */
+            if (store - from < to - store) {
+                sort(entries, from, store - 1);
+                from = store + 1;
+            } else {
+                sort(entries, store + 1, to);
+                to = store - 1;
+            }
+        }
+    }
+
+    private static void swap(long[] entries, int i, int j) {
+        for (int k = 0; k < FIELDS; k++) {
+            final long tmp = entries[i * FIELDS + k];
+            entries[i * FIELDS + k] = entries[j * FIELDS + k];
+            entries[j * FIELDS + k] = tmp;
+        }
+    }
+
+    /**
+     * A growable list of <code>long</code>.
+     */
+    private static final class LongList {
+        long[] values = new long[4];
+        int size;
+
+        void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * Delete the runs.
+     */
+    @Override
+    public void close() {
+        for (final File file : runs)
+            file.delete();
+        runs.clear();
+    }
+}
@@ -0,0 +1,68 @@
+package net.trebuh.gimapTransfer;
+
+import javax.mail.Folder;
+
+/**
+ * A unit of work for the {@link Copier}: messages of a source folder to copy.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public final class FolderBatch {
+    /**
+     * marks the end of a stream of batches
+     */
+    static final FolderBatch END = new FolderBatch(null, new LongHashSet());
+
+    public final Folder folder;
+    /**
+     * the Google message identifiers of the messages of <code>folder</code>
+     * to copy (not modified)
+     */
+    public final LongHashSet msgids;
+    /**
+     * the UIDs of the messages to copy if they are known (so that only those
+     * messages are fetched), or <code>null</code> (not modified)
+     */
+    public final long[] uids;
+    /**
+     * if this batch is a chunk of a folder, the UID of the first message of
+     * the chunk, or 0
+     */
+    public final long firstUid;
+    /**
+     * if this batch is a chunk of a folder, the UID of the last message of
+     * the chunk (or {@link javax.mail.UIDFolder#LASTUID})
+     */
+    public final long lastUid;
+
+    public FolderBatch(Folder folder, LongHashSet msgids) {
+        this(folder, msgids, null);
+    }
+
+    public FolderBatch(Folder folder, LongHashSet msgids, long[] uids) {
+        this(folder, msgids, uids, 0, 0);
+    }
+
+    /**
+     * A chunk of a folder: the messages of <code>msgids</code> whose UID is
+     * between <code>firstUid</code> and <code>lastUid</code>.
+     */
+    public FolderBatch(Folder folder, LongHashSet msgids, long firstUid, long lastUid) {
+        this(folder, msgids, null, firstUid, lastUid);
+    }
+
+    private FolderBatch(Folder folder, LongHashSet msgids, long[] uids, long firstUid, long lastUid) {
+        this.folder = folder;
+        this.msgids = msgids;
+        this.uids = uids;
+        this.firstUid = firstUid;
+        this.lastUid = lastUid;
+    }
+
+    /**
+     * @return <code>true</code> if this batch is a chunk of a folder
+     */
+    public boolean isChunk() {
+        return firstUid != 0;
+    }
+}
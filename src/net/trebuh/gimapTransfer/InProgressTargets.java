@@ -0,0 +1,239 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the messages of the in-progress journal are being copied: the path
+ * of their target folder, their Message-ID and their size, so that a copy
+ * interrupted by a crash can be found again with a single SEARCH in a single
+ * folder.
+ *
+ * This file is a side-car of the in-progress {@link MessageIdJournal}: an
+ * entry is written before the message identifier is added to the journal,
+ * and only the entries of the messages in the journal are meaningful. The
+ * entries are flushed to the operating system but not synced to the disk: if
+ * an entry is lost, the message is looked for the slow way.
+ *
+ * Each line is an entry: the message identifier, the size (followed by
+ * <code>T</code> if the copy is stamped with a {@link Copier#TRACKING_HEADER}
+ * header), the Message-ID (or an empty string), the elements of the path and
+ * a <code>$</code>, separated by tabs (escaped with backslashes).
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class InProgressTargets implements Closeable {
+    /**
+     * Where a message is being copied.
+     */
+    public static final class Target {
+        public final List<String> path;
+        /**
+         * <code>null</code> if the message has no Message-ID
+         */
+        public final String messageId;
+        /**
+         * the size of the message, without the tracking header
+         */
+        public final int size;
+        /**
+         * whether the copy is stamped with a {@link Copier#TRACKING_HEADER}
+         * header
+         */
+        public final boolean tracked;
+
+        Target(List<String> path, String messageId, int size, boolean tracked) {
+            this.path = Collections.unmodifiableList(new ArrayList<>(path));
+            this.messageId = messageId;
+            this.size = size;
+            this.tracked = tracked;
+        }
+    }
+
+    /**
+     * the last field of each entry, to detect torn entries
+     */
+    private static final String END_OF_ENTRY = "$";
+    /**
+     * the suffix of the size of the stamped copies
+     */
+    private static final String TRACKED = "T";
+
+    private final File file;
+    /**
+     * the entries of the messages being copied (guarded by <code>this</code>)
+     */
+    private final Map<Long, Target> targets = new HashMap<>();
+    private Writer out;
+    private long writtenLines;
+
+    /**
+     * @param file
+     *            the file storing the entries, created if it does not exist
+     * @throws IOException
+     */
+    public InProgressTargets(File file) throws IOException {
+        this.file = file;
+        if (file.isFile())
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    final List<String> fields = split(line);
+                    /* a torn last line is ignored */
+                    if (fields.size() < 4 || !fields.get(fields.size() - 1).equals(END_OF_ENTRY))
+                        continue;
+                    final String size = fields.get(1);
+                    final boolean tracked = size.endsWith(TRACKED);
+                    try {
+                        targets.put(Long.parseLong(fields.get(0)), new Target(fields.subList(3, fields.size() - 1),
+                                fields.get(2).isEmpty() ? null : fields.get(2),
+                                Integer.parseInt(tracked ? size.substring(0, size.length() - 1) : size), tracked));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    writtenLines++;
+                }
+            }
+        out = openAppend();
+    }
+
+    private Writer openAppend() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Record where a message is being copied.
+     *
+     * @param msgid
+     *            the Google message identifier
+     * @param path
+     *            the target folder
+     * @param messageId
+     *            the Message-ID of the message, or <code>null</code>
+     * @param size
+     *            the size of the message
+     * @param tracked
+     *            whether the copy is stamped with a
+     *            {@link Copier#TRACKING_HEADER} header
+     * @throws IOException
+     */
+    public synchronized void put(long msgid, List<String> path, String messageId, int size, boolean tracked)
+            throws IOException {
+        final Target target = new Target(path, messageId, size, tracked);
+        targets.put(msgid, target);
+        write(out, msgid, target);
+        out.flush();
+        writtenLines++;
+        if (writtenLines > 2 * targets.size() + 10000)
+            compact();
+    }
+
+    /**
+     * Forget where a message has been copied, once it is not in progress
+     * anymore.
+     */
+    public synchronized void remove(long msgid) {
+        targets.remove(msgid);
+    }
+
+    /**
+     * @return where the message is being copied, or <code>null</code> if it
+     *         is unknown
+     */
+    public synchronized Target get(long msgid) {
+        return targets.get(msgid);
+    }
+
+    /**
+     * Remove all entries.
+     *
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        targets.clear();
+        compact();
+    }
+
+    /**
+     * Rewrite the file with the current entries only.
+     */
+    private void compact() throws IOException {
+        out.close();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (Writer compacted = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (final Map.Entry<Long, Target> entry : targets.entrySet())
+                write(compacted, entry.getKey(), entry.getValue());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenLines = targets.size();
+        out = openAppend();
+    }
+
+    private static void write(Writer out, long msgid, Target target) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        line.append(msgid).append('\t').append(target.size).append(target.tracked ? TRACKED : "").append('\t');
+        escape(line, target.messageId == null ? "" : target.messageId);
+        for (final String element : target.path)
+            escape(line.append('\t'), element);
+        out.write(line.append('\t').append(END_OF_ENTRY).append('\n').toString());
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '\t')
+                sb.append("\\t");
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '\r')
+                sb.append("\\r");
+            else
+                sb.append(c);
+        }
+    }
+
+    /**
+     * @return the unescaped tab-separated fields of <code>line</code>
+     */
+    private static List<String> split(String line) {
+        final List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field = new StringBuilder();
+            } else if (c == '\\' && i + 1 < line.length()) {
+                final char next = line.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,170 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Maps the labels of a GMail message to the path of its target folder,
+ * following rules loaded from a file (see {@link #load(File)}):
+ * <ol>
+ * <li>the labels are renamed (<code>rename &lt;label&gt; -&gt;
+ * &lt;new label&gt;</code>),</li>
+ * <li>the ignored labels are removed (<code>ignore &lt;label&gt;</code>),</li>
+ * <li>the labels containing a <code>/</code> are split in several labels,
+ * and</li>
+ * <li>in the order of the rules, the labels that should only be kept if they
+ * are the only label of the message are removed if they are not
+ * (<code>unless-alone &lt;label&gt;</code>).</li>
+ * </ol>
+ * The labels are compared ignoring case, and the remaining ones, sorted, are
+ * the path of the folder. Empty lines and lines starting with
+ * <code>#</code> are ignored.
+ *
+ * The rules are compiled once, and the path of each distinct set of labels
+ * is computed once: the messages of an account only have a few thousand
+ * distinct sets of labels. The paths are interned, so that all the messages
+ * copied to a folder share the same list.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public final class LabelMapper {
+    /**
+     * The rules used without a rules file: INBOX (a reserved name, the
+     * messages are put at the root) and [Gmail] (not meaningful) are
+     * ignored, and Important, Sent and Messages envoyés (the French name of
+     * the Sent folder) are only kept if they are the only label.
+     */
+    public static final LabelMapper DEFAULT = new LabelMapper(Collections.emptyMap(),
+            Arrays.asList("INBOX", "[Gmail]"), Arrays.asList("Important", "Sent", "Messages envoyés"));
+
+    private static final String RENAME = "rename ";
+    private static final String IGNORE = "ignore ";
+    private static final String UNLESS_ALONE = "unless-alone ";
+    private static final String ARROW = " -> ";
+
+    private final Map<String, String> renamed = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Set<String> ignored = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    private final List<String> unlessAlone;
+    /**
+     * the path of each set of labels already mapped, keyed by the folder
+     * labels followed by a <code>null</code> and the labels of the message
+     */
+    private final ConcurrentMap<List<String>, List<String>> paths = new ConcurrentHashMap<>();
+    /**
+     * the canonical instance of each path
+     */
+    private final ConcurrentMap<List<String>, List<String>> interned = new ConcurrentHashMap<>();
+
+    private LabelMapper(Map<String, String> renamed, List<String> ignored, List<String> unlessAlone) {
+        this.renamed.putAll(renamed);
+        this.ignored.addAll(ignored);
+        this.unlessAlone = ImmutableList.copyOf(unlessAlone);
+    }
+
+    /**
+     * @param file
+     *            the rules
+     * @return the mapper following the rules of <code>file</code>
+     * @throws IOException
+     *             if the file cannot be read or a rule is invalid
+     */
+    public static LabelMapper load(File file) throws IOException {
+        final Map<String, String> renamed = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final List<String> ignored = new ArrayList<>();
+        final List<String> unlessAlone = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if (line.startsWith(RENAME) && line.contains(ARROW)) {
+                    final int arrow = line.indexOf(ARROW);
+                    renamed.put(line.substring(RENAME.length(), arrow).trim(),
+                            line.substring(arrow + ARROW.length()).trim());
+                } else if (line.startsWith(IGNORE))
+                    ignored.add(line.substring(IGNORE.length()).trim());
+                else if (line.startsWith(UNLESS_ALONE))
+                    unlessAlone.add(line.substring(UNLESS_ALONE.length()).trim());
+                else
+                    throw new IOException(String.format("Invalid rule at line %d of %s: %s", lineNumber, file, line));
+            }
+        }
+        return new LabelMapper(renamed, ignored, unlessAlone);
+    }
+
+    /**
+     * @param folderNameBasedLabels
+     *            the labels obtained from the folder name (excluding [Gmail]
+     *            if any)
+     * @param labels
+     *            the labels of the message (see
+     *            {@link com.sun.mail.gimap.GmailMessage#getLabels()})
+     * @return the full name of the folder relative to the root target
+     *         directory, which must not be modified
+     */
+    public List<String> map(List<String> folderNameBasedLabels, String[] labels) {
+        final List<String> key = new ArrayList<>(folderNameBasedLabels.size() + 1 + labels.length);
+        key.addAll(folderNameBasedLabels);
+        key.add(null);
+        Collections.addAll(key, labels);
+        final List<String> path = paths.get(key);
+        if (path != null)
+            return path;
+        final List<String> computed = intern(compute(folderNameBasedLabels, labels));
+        final List<String> previous = paths.putIfAbsent(key, computed);
+        return previous != null ? previous : computed;
+    }
+
+    private List<String> intern(List<String> path) {
+        final List<String> previous = interned.putIfAbsent(path, path);
+        return previous != null ? previous : path;
+    }
+
+    private List<String> compute(List<String> folderNameBasedLabels, String[] rawLabels) {
+        final TreeSet<String> labels = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (String label : rawLabels) {
+            if (!label.isEmpty() && label.charAt(0) == '\\')
+                label = label.substring(1);
+            labels.add(rename(label));
+        }
+        for (final String label : folderNameBasedLabels)
+            labels.add(rename(label));
+        labels.removeAll(ignored);
+        for (final String label : new ArrayList<>(labels)) {
+            if (label.contains("/")) {
+                labels.remove(label);
+                for (final String part : Splitter.on('/').split(label))
+                    labels.add(part);
+            }
+        }
+        for (final String label : unlessAlone)
+            if (labels.size() != 1)
+                labels.remove(label);
+        return ImmutableList.copyOf(labels);
+    }
+
+    private String rename(String label) {
+        final String newName = renamed.get(label);
+        return newName != null ? newName : label;
+    }
+}
@@ -0,0 +1,198 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A set of primitive <code>long</code> values using open addressing with
+ * linear probing. Unlike a <code>HashSet&lt;Long&gt;</code>, it does not box
+ * its elements and uses about 16 bytes per element (at most half of the
+ * table is used).
+ *
+ * This class is not thread-safe.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * 0 is used to mark free slots, its presence is tracked separately
+     */
+    private long[] table;
+    private boolean hasZero;
+    private int size;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of elements that can be added without resizing
+     */
+    public LongHashSet(int expectedSize) {
+        table = new long[tableSizeFor(expectedSize)];
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2L * expectedSize)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static int mix(long e) {
+        long h = e * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @param e
+     * @return <code>true</code> if this set contains the given element,
+     *         <code>false</code> otherwise.
+     */
+    public boolean contains(long e) {
+        if (e == 0)
+            return hasZero;
+        final int mask = table.length - 1;
+        for (int i = mix(e) & mask;; i = (i + 1) & mask) {
+            final long cur = table[i];
+            if (cur == e)
+                return true;
+            if (cur == 0)
+                return false;
+        }
+    }
+
+    /**
+     * @param e
+     *            an element to add to the set
+     * @return <code>true</code> if this set did not already contain the
+     *         specified element, <code>false</code> otherwise
+     */
+    public boolean add(long e) {
+        if (e == 0) {
+            if (hasZero)
+                return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        final int mask = table.length - 1;
+        for (int i = mix(e) & mask;; i = (i + 1) & mask) {
+            final long cur = table[i];
+            if (cur == e)
+                return false;
+            if (cur == 0) {
+                table[i] = e;
+                if (++size > table.length / 2)
+                    rehash(table.length * 2);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param e
+     *            an element to remove from the set
+     * @return <code>true</code> if this set contained the specified element,
+     *         <code>false</code> otherwise
+     */
+    public boolean remove(long e) {
+        if (e == 0) {
+            if (!hasZero)
+                return false;
+            hasZero = false;
+            size--;
+            return true;
+        }
+        final int mask = table.length - 1;
+        int i = mix(e) & mask;
+        while (table[i] != e) {
+            if (table[i] == 0)
+                return false;
+            i = (i + 1) & mask;
+        }
+        /* backward shift deletion: no tombstones needed */
+        int free = i;
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            final int home = mix(table[j]) & mask;
+            if (((j - home) & mask) >= ((j - free) & mask)) {
+                table[free] = table[j];
+                free = j;
+            }
+        }
+        table[free] = 0;
+        size--;
+        return true;
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] old = table;
+        table = new long[newCapacity];
+        final int mask = newCapacity - 1;
+        for (final long e : old) {
+            if (e == 0)
+                continue;
+            int i = mix(e) & mask;
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = e;
+        }
+    }
+
+    /**
+     * @return the number of elements in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all elements and shrinks the table to its minimal size.
+     */
+    public void clear() {
+        table = new long[MIN_CAPACITY];
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * Applies <code>action</code> on each element of this set, in no
+     * particular order.
+     *
+     * @param action
+     */
+    public void forEach(LongConsumer action) {
+        if (hasZero)
+            action.accept(0);
+        for (final long e : table)
+            if (e != 0)
+                action.accept(e);
+    }
+
+    /**
+     * @return a new array containing the elements of this set, in no
+     *         particular order
+     */
+    public long[] toArray() {
+        final long[] result = new long[size];
+        int i = 0;
+        if (hasZero)
+            result[i++] = 0;
+        for (final long e : table)
+            if (e != 0)
+                result[i++] = e;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
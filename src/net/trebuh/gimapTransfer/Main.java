@@ -2,10 +2,20 @@ package net.trebuh.gimapTransfer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Level;
@@ -25,6 +35,7 @@ import javax.mail.Store;
 import javax.mail.search.AndTerm;
 import javax.mail.search.ComparisonTerm;
 import javax.mail.search.FromTerm;
+import javax.mail.search.HeaderTerm;
 import javax.mail.search.ReceivedDateTerm;
 import javax.mail.search.RecipientTerm;
 import javax.mail.search.SearchTerm;
@@ -32,9 +43,6 @@ import javax.mail.search.SentDateTerm;
 import javax.mail.search.SubjectTerm;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.sun.mail.gimap.GmailFolder;
-import com.sun.mail.gimap.GmailMessage;
 import com.sun.mail.gimap.GmailMsgIdTerm;
 
 public class Main {
@@ -106,16 +114,41 @@ public class Main {
      */
     private static final int SMALL_MESSAGE_SIZE = 10 * 1024;
     /**
-     * Tries to download (fetch) small messages in batch of at least this size
-     * (in bytes)
+     * Initial size (in bytes) of the batches in which small messages are
+     * downloaded (fetched), tuned while copying
      */
     private static final int SMALL_MESSAGE_BATCH_SIZE = 10 * 1024 * 1024;
+    /**
+     * Size (in bytes) of the chunks in which the other messages are read from
+     * Google while they are appended to the target server
+     */
+    private static final int STREAMING_CHUNK_SIZE = 256 * 1024;
     /**
      * Refresh rate in milliseconds of status messages
      */
     private static final int REFRESH_RATE = 200;
     private static final String GIMAP = "gimap";
     private static final String GOOGLE_HOST = "imap.gmail.com";
+    /**
+     * Directory of the cache of the source folders when synchronizing
+     * without an explicit --source-index
+     */
+    private static final String DEFAULT_SOURCE_INDEX_DIR = "./sourceIndex";
+    /**
+     * Maximum number of tracked messages looked for with a single SEARCH
+     */
+    private static final int TRACKING_SEARCH_SIZE = 200;
+    /**
+     * Difference of size (in percents of the size of the source message)
+     * between an unstamped copy to roll back and the source message, as the
+     * target server may rewrite the line endings
+     */
+    private static final int ROLLBACK_SIZE_TOLERANCE = 2;
+    /**
+     * Minimum difference of size (in bytes) tolerated for the copy to roll
+     * back of a small message
+     */
+    private static final int ROLLBACK_SIZE_TOLERANCE_MIN = 64;
 
     private static Logger log = Logger.getLogger("Main");
 
@@ -141,17 +174,40 @@ public class Main {
             if (!targetRoot.exists())
                 targetRoot.create(Folder.HOLDS_FOLDERS | Folder.HOLDS_MESSAGES);
 
-            final FileBackedSet done = new FileBackedSet(new File("./done.txt"));
+            final MessageIdJournal done = new MessageIdJournal(new File("./done.txt"), options.syncWindow,
+                    options.mappedState);
             log.info(String.format("%d messages have already been copied", done.size()));
 
-            final FileBackedSet inProgress = new FileBackedSet(new File("./inProgress.txt"));
-            if (inProgress.size() != 0)
-                rollbackSession(sourceRoot, targetRoot, inProgress);
+            final MessageIdJournal inProgress = new MessageIdJournal(new File("./inProgress.txt"),
+                    options.syncWindow);
+            final InProgressTargets targets = new InProgressTargets(new File("./inProgress.txt.targets"));
+            final LabelMapper labelMapper = options.labelRules == null ? LabelMapper.DEFAULT
+                    : LabelMapper.load(new File(options.labelRules));
+            final Function<Copier, Copier> configure = copier -> configure(copier, targets, labelMapper, options);
+            recoverSession(sourceRoot, targetRoot, done, inProgress, targets);
 
-            final HashMap<Long, Folder> todo = getTodos(sourceRoot, done);
+            if (options.allMail && (options.sync || options.streaming))
+                log.warning("--all-mail is ignored with --sync and --streaming");
+            if (options.sync)
+                sync(sourceRoot, targetRoot, done, inProgress, targets, configure, options);
+            else if (options.streaming)
+                streamingCopy(sourceRoot, targetRoot, done, inProgress, configure, options);
+            else {
+                final TodoPlanner planner = new TodoPlanner(sourceRoot, done, Math.max(1, options.googlePoolSize),
+                        REFRESH_RATE, getSourceIndex(options));
+                final Map<Folder, LongHashSet> todo = options.allMail ? planner.planAllMail()
+                        : planner.plan(options.singlePass);
 
-            Copier.of(todo, done, inProgress, targetRoot, SMALL_MESSAGE_SIZE, SMALL_MESSAGE_BATCH_SIZE, REFRESH_RATE,
-                    Math.max(1, options.googlePoolSize), Math.max(1, options.targetPoolSize)).copyMessages();
+                final Copier copier = configure.apply(Copier.of(todo, done, inProgress, targetRoot,
+                        SMALL_MESSAGE_SIZE, SMALL_MESSAGE_BATCH_SIZE, REFRESH_RATE,
+                        Math.max(1, options.googlePoolSize), Math.max(1, options.targetPoolSize)));
+                if (options.allMail)
+                    copier.withAllMailSource();
+                copier.copyMessages();
+            }
+            targets.close();
+            inProgress.close();
+            done.close();
 
         } catch (final NoSuchProviderException e) {
             e.printStackTrace();
@@ -178,15 +234,26 @@ public class Main {
      * @param inProgress
      *            unique google identifiers of messages in sourceRoot that have
      *            only partially been copied to targetRoot
+     * @param targets
+     *            where the messages of <code>inProgress</code> were copied:
+     *            a message whose target folder and Message-ID are known is
+     *            only looked for in that folder
      * @throws MessagingException
      *             in case of error
      * @throws IOException
      *             if <code>inProgress</code> cannot be cleared
      */
     private static void rollbackSession(final Folder sourceRoot, final Folder targetRoot,
-            final FileBackedSet inProgress) throws MessagingException, IOException {
+            final MessageIdJournal inProgress, final InProgressTargets targets)
+            throws MessagingException, IOException {
         log.info("This program has been interrupted during a copy... retreiving the messages to remove");
-        for (final long msgid : inProgress.getContents()) {
+        int kept = 0;
+        for (final long msgid : inProgress.toArray()) {
+            final InProgressTargets.Target target = targets.get(msgid);
+            if (target != null && (target.messageId != null || target.tracked)) {
+                kept += rollbackMessage(msgid, targetRoot, target);
+                continue;
+            }
             log.info("Looking for google message with id " + msgid + "...");
             search(new GmailMsgIdTerm(msgid), sourceRoot, Folder.READ_ONLY, srcMsg -> {
                 log.info("Found google message with id " + msgid
@@ -229,7 +296,274 @@ public class Main {
                 });
             });
         }
+        if (kept > 0)
+            log.warning(kept + " messages with the Message-ID of a message to remove but a different size were kept,"
+                    + " they may be interrupted copies to remove by hand");
         inProgress.clear();
+        targets.clear();
+    }
+
+    /**
+     * Resolve the messages of <code>inProgress</code> (left by an interrupted
+     * run, or by failed copies), so that a copier can be started: the
+     * tracked copies are looked for (see
+     * {@link #resumeTrackedSession(Folder, MessageIdJournal, MessageIdJournal, InProgressTargets)}),
+     * the other ones are removed (see
+     * {@link #rollbackSession(Folder, Folder, MessageIdJournal, InProgressTargets)}).
+     *
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private static void recoverSession(final Folder sourceRoot, final Folder targetRoot,
+            final MessageIdJournal done, final MessageIdJournal inProgress, final InProgressTargets targets)
+            throws MessagingException, IOException {
+        /* whatever --tracking-header, as the interrupted run may have been run otherwise */
+        if (inProgress.size() != 0)
+            resumeTrackedSession(targetRoot, done, inProgress, targets);
+        if (inProgress.size() != 0)
+            rollbackSession(sourceRoot, targetRoot, inProgress, targets);
+    }
+
+    /**
+     * Resolves the messages of <code>inProgress</code> whose copies were
+     * stamped with a {@link Copier#TRACKING_HEADER} header (see
+     * {@link InProgressTargets.Target#tracked}) without removing anything:
+     * they are looked for with a single SEARCH per target folder (and a FETCH
+     * of this header), those found are marked as done and the others will be
+     * copied again.
+     * 
+     * The other messages (not stamped, or whose target folder is unknown)
+     * are left in <code>inProgress</code>, to be rolled back.
+     * 
+     * @param targetRoot
+     * @param done
+     * @param inProgress
+     * @param targets
+     *            where the messages of <code>inProgress</code> were copied
+     * @throws MessagingException
+     * @throws IOException
+     *             if <code>done</code> or <code>inProgress</code> cannot be
+     *             updated
+     */
+    private static void resumeTrackedSession(final Folder targetRoot, final MessageIdJournal done,
+            final MessageIdJournal inProgress, final InProgressTargets targets)
+            throws MessagingException, IOException {
+        final Map<List<String>, LongHashSet> byFolder = new HashMap<>();
+        for (final long msgid : inProgress.toArray()) {
+            final InProgressTargets.Target target = targets.get(msgid);
+            if (target == null || !target.tracked)
+                continue;
+            LongHashSet msgids = byFolder.get(target.path);
+            if (msgids == null) {
+                msgids = new LongHashSet();
+                byFolder.put(target.path, msgids);
+            }
+            msgids.add(msgid);
+        }
+        for (final Entry<List<String>, LongHashSet> entry : byFolder.entrySet()) {
+            final long[] msgids = entry.getValue().toArray();
+            Folder folder = targetRoot;
+            for (final String name : entry.getKey())
+                folder = folder.getFolder(name);
+            final LongHashSet found = new LongHashSet();
+            if (folder.exists()) {
+                log.info(String.format("Looking for %d interrupted copies in %s...", msgids.length,
+                        folder.getFullName()));
+                folder.open(Folder.READ_ONLY);
+                try {
+                    for (int from = 0; from < msgids.length; from += TRACKING_SEARCH_SIZE)
+                        Copier.findTracked(folder, Arrays.copyOfRange(msgids, from,
+                                Math.min(msgids.length, from + TRACKING_SEARCH_SIZE)), found);
+                } finally {
+                    folder.close(false);
+                }
+            }
+            log.info(String.format("%d of them have been copied, %d will be copied again", found.size(),
+                    msgids.length - found.size()));
+            done.addAll(found.toArray());
+            inProgress.removeAll(msgids);
+        }
+    }
+
+    /**
+     * Removes the copy of a message from the target folder it was being
+     * copied to, found by its {@link Copier#TRACKING_HEADER} header if it
+     * was stamped, or else by its Message-ID and its size (as several
+     * messages may have the same Message-ID). The size may differ by a few
+     * percents (see {@link #ROLLBACK_SIZE_TOLERANCE}), as the target server may
+     * rewrite the line endings.
+     * 
+     * @param msgid
+     *            the google identifier of the message
+     * @param targetRoot
+     * @param target
+     *            where the message was being copied
+     * @return the number of messages with the same Message-ID kept because
+     *         of their size
+     * @throws MessagingException
+     */
+    private static int rollbackMessage(final long msgid, final Folder targetRoot,
+            final InProgressTargets.Target target) throws MessagingException {
+        Folder folder = targetRoot;
+        for (final String name : target.path)
+            folder = folder.getFolder(name);
+        if (!folder.exists()) {
+            log.info("The target folder of google message with id " + msgid + " does not exist, nothing to remove");
+            return 0;
+        }
+        log.info("Looking for google message with id " + msgid + " in " + folder.getFullName() + "...");
+        int kept = 0;
+        folder.open(Folder.READ_WRITE);
+        try {
+            if (target.tracked) {
+                final String stamp = Long.toString(msgid);
+                for (final Message message : folder.search(new HeaderTerm(Copier.TRACKING_HEADER, stamp))) {
+                    final String[] values = message.getHeader(Copier.TRACKING_HEADER);
+                    /* SEARCH HEADER matches substrings */
+                    if (values != null && Arrays.stream(values).anyMatch(value -> value.trim().equals(stamp))) {
+                        log.info("Found a corresponding message on the server, deleting it.");
+                        message.setFlag(Flag.DELETED, true);
+                    }
+                }
+                return 0;
+            }
+            final long tolerance = Math.max(ROLLBACK_SIZE_TOLERANCE_MIN,
+                    (long) target.size * ROLLBACK_SIZE_TOLERANCE / 100);
+            for (final Message message : folder.search(new HeaderTerm("Message-ID", target.messageId))) {
+                if (Math.abs(message.getSize() - target.size) <= tolerance) {
+                    log.info("Found a corresponding message on the server, deleting it.");
+                    message.setFlag(Flag.DELETED, true);
+                } else {
+                    log.warning(String.format("Message %d of %s has the same Message-ID but a different size, kept",
+                            message.getMessageNumber(), folder.getFullName()));
+                    kept++;
+                }
+            }
+        } finally {
+            folder.close(true);
+        }
+        return kept;
+    }
+
+    /**
+     * Copy the messages while they are being discovered: the source folders
+     * are scanned by half of the GMail connections, and the messages to copy
+     * of each folder are handed to the copier through a bounded queue.
+     *
+     * @param configure
+     *            applies the options to the copier
+     * @throws MessagingException
+     *             if scanning or copying failed
+     * @throws IOException
+     */
+    private static void streamingCopy(final Folder sourceRoot, final Folder targetRoot, final MessageIdJournal done,
+            final MessageIdJournal inProgress, final Function<Copier, Copier> configure,
+            final ParsedArguments options) throws MessagingException, IOException {
+        final int googlePoolSize = Math.max(1, options.googlePoolSize);
+        final BlockingQueue<FolderBatch> todo = new ArrayBlockingQueue<>(2 * googlePoolSize);
+        final TodoPlanner planner = new TodoPlanner(sourceRoot, done, Math.max(1, googlePoolSize / 2),
+                REFRESH_RATE, getSourceIndex(options));
+        final ExecutorService planning = Executors.newSingleThreadExecutor();
+        final Future<?> planned = planning.submit(() -> {
+            planner.stream(todo);
+            return null;
+        });
+        planning.shutdown();
+
+        configure.apply(Copier.streaming(todo, done, inProgress, targetRoot, SMALL_MESSAGE_SIZE,
+                SMALL_MESSAGE_BATCH_SIZE, REFRESH_RATE, googlePoolSize, Math.max(1, options.targetPoolSize)))
+                .copyMessages();
+        try {
+            planned.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while scanning folders", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof MessagingException)
+                throw (MessagingException) e.getCause();
+            throw new MessagingException("Failed to scan folders", e);
+        }
+    }
+
+    /**
+     * Copy the messages added since the previous run, then (if
+     * {@link ParsedArguments#syncEvery} is positive) do it again periodically.
+     * Only the folders that changed are opened, and only the changed messages
+     * are fetched (see {@link SourceIndex#changes(Folder)}). The messages
+     * left in progress by a pass (failed copies) are resolved before the next
+     * one.
+     *
+     * @param targets
+     *            where the messages in progress are copied
+     * @param configure
+     *            applies the options to the copier
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private static void sync(final Folder sourceRoot, final Folder targetRoot, final MessageIdJournal done,
+            final MessageIdJournal inProgress, final InProgressTargets targets,
+            final Function<Copier, Copier> configure, final ParsedArguments options)
+            throws MessagingException, IOException {
+        final SourceIndex sourceIndex = new SourceIndex(
+                new File(options.sourceIndexDir == null ? DEFAULT_SOURCE_INDEX_DIR : options.sourceIndexDir));
+        final TodoPlanner planner = new TodoPlanner(sourceRoot, done, Math.max(1, options.googlePoolSize),
+                REFRESH_RATE, sourceIndex);
+        while (true) {
+            if (!sourceRoot.getStore().isConnected())
+                sourceRoot.getStore().connect();
+            if (!targetRoot.getStore().isConnected())
+                targetRoot.getStore().connect();
+            /* the messages whose copy failed during the previous pass */
+            recoverSession(sourceRoot, targetRoot, done, inProgress, targets);
+            final List<FolderBatch> changes = planner.planChanges();
+            configure.apply(Copier.of(changes, done, inProgress, targetRoot, SMALL_MESSAGE_SIZE,
+                    SMALL_MESSAGE_BATCH_SIZE, REFRESH_RATE, Math.max(1, options.googlePoolSize),
+                    Math.max(1, options.targetPoolSize))).copyMessages();
+            if (options.syncEvery <= 0)
+                return;
+            log.info(String.format("Next synchronization in %d minutes", options.syncEvery));
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(options.syncEvery));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply the options of the command line that are not arguments of the
+     * factories of {@link Copier}, and record where the messages in progress
+     * are copied in <code>targets</code>.
+     *
+     * @param labelMapper
+     *            maps the labels of the messages to their target folder
+     * @return <code>copier</code>
+     */
+    private static Copier configure(final Copier copier, final InProgressTargets targets,
+            final LabelMapper labelMapper, final ParsedArguments options) {
+        copier.recordingTargets(targets).withLabelMapper(labelMapper);
+        if (options.trackingHeader)
+            copier.withTrackingHeader();
+        if (options.memoryBudget > 0)
+            copier.withMemoryBudget(options.memoryBudget * 1024L * 1024L);
+        if (options.virtualThreads) {
+            if (VirtualThreads.isAvailable())
+                copier.withVirtualThreads();
+            else
+                log.warning("Virtual threads require Java 21 or later, using platform threads");
+        }
+        return copier;
+    }
+
+    /**
+     * @return the cache of the source folders, or <code>null</code> if none
+     *         has been configured
+     * @throws IOException
+     *             if the cache directory cannot be created
+     */
+    private static SourceIndex getSourceIndex(final ParsedArguments options) throws IOException {
+        return options.sourceIndexDir == null ? null : new SourceIndex(new File(options.sourceIndexDir));
     }
 
     /**
@@ -239,6 +573,7 @@ public class Main {
     private static Session getSession(ParsedArguments options) {
         final Properties props = System.getProperties();
         props.setProperty("mail.imaps.appendbuffersize", Integer.toString(SMALL_MESSAGE_SIZE));
+        props.setProperty("mail." + GIMAP + ".fetchsize", Integer.toString(STREAMING_CHUNK_SIZE));
         if (options.useStartTLS)
             props.setProperty("mail.imap.starttls.required", "true");
         if (options.targetPoolSize > 0)
@@ -251,47 +586,6 @@ public class Main {
         return Session.getInstance(props, authenticator);
     }
 
-    private static HashMap<Long, Folder> getTodos(final Folder sourceRoot, final FileBackedSet done) {
-        log.info("Counting messages...");
-        final int[] nbMessages = new int[] { 0 };
-        final Thread t = new Thread(() -> countMessages(nbMessages, sourceRoot), "Thread-messageCounter");
-        t.start();
-        while (t.isAlive()) {
-            try {
-                t.join(REFRESH_RATE);
-            } catch (final InterruptedException e) {
-                t.interrupt();
-                System.exit(1);
-            }
-            System.err.print(String.format("\rCounting messages... %d found", nbMessages[0]));
-        }
-        System.err.println();
-        log.info(String.format("Found %d messages (including duplicates) on source server", nbMessages[0]));
-        if (nbMessages[0] == 0)
-            System.exit(0);
-
-        log.info("Computing messages to copy...");
-        final HashMap<Long, Folder> todo = Maps.newHashMapWithExpectedSize(nbMessages[0] - done.size());
-        final Thread t2 = new Thread(() -> computeTODO(done, todo, sourceRoot, nbMessages), "Thread-computeTODO");
-        t2.start();
-        while (t2.isAlive()) {
-            try {
-                t2.join(REFRESH_RATE);
-            } catch (final InterruptedException e) {
-                t2.interrupt();
-                System.exit(1);
-            }
-            if (nbMessages[0] - done.size() != 0)
-                System.err.print(
-                        String.format("\r...%5.1f%%", (todo.size() * 100f) / ((float) (nbMessages[0] - done.size()))));
-            else {
-                System.err.print("\r...100.0%");
-            }
-        }
-        System.err.println(String.format("\r...100.0%% Found %d messages to copy", todo.size()));
-        return todo;
-    }
-
     /**
      * Recursively search in <code>root</code> folder for the messages that
      * matches <code>term</code> and apply <code>cons</code> on the found
@@ -319,79 +613,6 @@ public class Main {
                 search(term, folder, mode, cons);
     }
 
-    /**
-     * @param done
-     *            the set of messages that have already been copied
-     * @param todo
-     *            the set in which messages that should be copied will be put,
-     *            indexed by their Google Unique Identifier
-     * @param root
-     *            the folder in which messages should be (recursively) looked
-     *            for
-     * @param nbMessages
-     *            will be updated (decremented) if duplicates are found while
-     *            looking for messages to be done
-     */
-    private static void computeTODO(final FileBackedSet done, final HashMap<Long, Folder> todo, final Folder root,
-            final int[] nbMessages) {
-        try {
-            if ((root.getType() & Folder.HOLDS_MESSAGES) != 0) {
-                if (!root.isOpen())
-                    root.open(Folder.READ_ONLY);
-                final Message[] messages = root.getMessages();
-                final FetchProfile fp = new FetchProfile();
-                fp.add(GmailFolder.FetchProfileItem.MSGID);
-                root.fetch(messages, fp);
-                for (final Message message : messages) {
-                    final GmailMessage gMsg = (GmailMessage) message;
-                    final Long msgId = gMsg.getMsgId();
-                    if (todo.containsKey(msgId))
-                        nbMessages[0]--;
-                    else if (done.contains(msgId))
-                        continue;
-                    else
-                        todo.put(msgId, root);
-                }
-                root.close(false);
-            }
-            if ((root.getType() & Folder.HOLDS_FOLDERS) != 0)
-                for (final Folder folder : root.list())
-                    computeTODO(done, todo, folder, nbMessages);
-        } catch (final MessagingException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    /**
-     * Count recursively the messages in <code>root</code> folder, updating
-     * <code>nbMessages</code> on the way.
-     * 
-     * @param nbMessages
-     *            a reference (an array with exactly one element)
-     * @param root
-     * @throws IllegalStateException
-     *             with a cause in case of an error
-     */
-    static void countMessages(final int[] nbMessages, final Folder root) {
-        try {
-            if ((root.getType() & Folder.HOLDS_MESSAGES) != 0) {
-                int messageCount = root.getMessageCount();
-                if (messageCount == -1) {
-                    if (!root.isOpen())
-                        root.open(Folder.READ_ONLY);
-                    messageCount = root.getMessageCount();
-                    root.close(false);
-                }
-                nbMessages[0] += messageCount;
-            }
-            if ((root.getType() & Folder.HOLDS_FOLDERS) != 0)
-                for (final Folder folder : root.list())
-                    countMessages(nbMessages, folder);
-        } catch (final MessagingException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     /**
      * Like {@link Function}, but the apply method can throw a
      * {@link MessagingException}.
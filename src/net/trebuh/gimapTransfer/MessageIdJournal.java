@@ -0,0 +1,660 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A set of Google message identifiers backed by an append-only journal file.
+ *
+ * The journal starts with a {@value #HEADER_SIZE} bytes header followed by
+ * fixed-width records of {@value #RECORD_SIZE} bytes: the identifier, the
+ * operation ({@link #OP_ADD} or {@link #OP_REMOVE}) and a CRC32 of both. A torn
+ * record (because of a crash while writing it) is detected and dropped when
+ * the journal is loaded.
+ *
+ * {@link #add(long)} and {@link #remove(long)} only return once the
+ * corresponding record is on disk. Records of concurrent callers are written
+ * and synchronized together by a single committer thread (group commit): the
+ * committer waits at most <code>syncWindow</code> milliseconds to gather more
+ * records before calling {@link FileChannel#force(boolean)}.
+ *
+ * Files written by the previous implementation (a stream of longs written by
+ * an {@link java.io.ObjectOutputStream}) are converted when loaded.
+ *
+ * In mapped mode, the set is not loaded in memory: a sorted index of the
+ * journal (see {@link SortedLongIndex}) is memory-mapped, and only the records
+ * appended since the index was written are kept on the heap. The index is
+ * built when missing and updated when the journal is closed, so restarting
+ * with millions of identifiers only costs mapping the index and replaying the
+ * end of the journal.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class MessageIdJournal implements Closeable {
+    private static final Logger log = Logger.getLogger(MessageIdJournal.class.getName());
+
+    private static final long MAGIC = 0x47544A524E4C0001L; // "GTJRNL" + 1
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 16;
+    static final int OP_ADD = 1;
+    static final int OP_REMOVE = 2;
+    /**
+     * first bytes of a file written by an ObjectOutputStream
+     */
+    private static final short LEGACY_STREAM_MAGIC = (short) 0xACED;
+    /**
+     * size of the parts of the journal mapped at once when it is read
+     */
+    private static final long SCAN_WINDOW = 4096L * 4096 * RECORD_SIZE;
+
+    private interface RecordVisitor {
+        void visit(long e, int op);
+    }
+
+    private final File file;
+    private final long syncWindow;
+    private final FileChannel channel;
+    private final Thread committer;
+    /**
+     * the index file, <code>null</code> if the journal is not in mapped mode
+     */
+    private final File indexFile;
+
+    /*
+     * All fields below are guarded by lock
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * signaled when records are appended or written, or when the journal is
+     * closed
+     */
+    private final Condition changed = lock.newCondition();
+    /**
+     * the elements that are not in the index
+     */
+    private final LongHashSet set = new LongHashSet();
+    /**
+     * the elements of the index that have been removed
+     */
+    private final LongHashSet removed = new LongHashSet();
+    private SortedLongIndex index;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * RECORD_SIZE);
+    private long appendedSeq;
+    private long durableSeq;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Construct a set backed by the given journal file. If the file exists, it
+     * is used to initialize the current set. New elements are then appended to
+     * it.
+     *
+     * @param file
+     * @param syncWindow
+     *            the maximum time (in milliseconds) the committer waits for
+     *            other records before synchronizing the file to disk (0 to
+     *            synchronize as soon as possible)
+     * @throws IOException
+     *             if the file exists but cannot be read and written to, or if
+     *             the file does not exist and cannot be created.
+     */
+    public MessageIdJournal(File file, long syncWindow) throws IOException {
+        this(file, syncWindow, false);
+    }
+
+    /**
+     * Construct a set backed by the given journal file, possibly in mapped
+     * mode.
+     *
+     * @param file
+     * @param syncWindow
+     *            the maximum time (in milliseconds) the committer waits for
+     *            other records before synchronizing the file to disk (0 to
+     *            synchronize as soon as possible)
+     * @param mapped
+     *            if <code>true</code>, the contents of the journal is looked
+     *            up in a memory-mapped index (<code>file</code> with the
+     *            <code>.idx</code> extension) instead of being loaded in memory
+     * @throws IOException
+     *             if the file exists but cannot be read and written to, or if
+     *             the file does not exist and cannot be created.
+     */
+    public MessageIdJournal(File file, long syncWindow, boolean mapped) throws IOException {
+        this.file = file;
+        this.syncWindow = syncWindow;
+        this.indexFile = mapped ? new File(file.getPath() + ".idx") : null;
+
+        if (file.exists() && !(file.canRead() && file.canWrite()))
+            throw new IOException("The file " + file.toString() + " exists but it cannot be read and written.");
+        if (file.exists() && file.length() >= 2 && isLegacy(file))
+            convertLegacy(file);
+
+        FileChannel ch = open(file);
+        if (ch.size() == 0)
+            writeHeader(ch);
+        else if (load(ch) > 2L * set.size() + 1024 && indexFile == null) {
+            /* mostly removals (e.g., in progress messages): compact the file */
+            ch.close();
+            writeCompacted(file, set);
+            ch = open(file);
+            ch.position(ch.size());
+        }
+        channel = ch;
+
+        committer = new Thread(this::commitLoop, "Thread-journal-" + file.getName());
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private static boolean isLegacy(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return (short) ((in.read() << 8) | in.read()) == LEGACY_STREAM_MAGIC;
+        }
+    }
+
+    /**
+     * Rewrite a file written by the previous implementation in the journal
+     * format. The new file replaces the old one atomically.
+     */
+    private static void convertLegacy(File file) throws IOException {
+        log.info("Converting " + file + " to the journal format...");
+        final LongHashSet legacy = new LongHashSet();
+        try (InputStream in = new FileInputStream(file);
+                InputStream bis = new BufferedInputStream(in);
+                ObjectInputStream ois = new ObjectInputStream(bis)) {
+            try {
+                while (true)
+                    legacy.add(ois.readLong());
+            } catch (EOFException e) {
+                // end of loading
+            }
+        }
+        writeCompacted(file, legacy);
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).flip();
+        channel.position(0);
+        while (header.hasRemaining())
+            channel.write(header);
+        channel.force(true);
+    }
+
+    /**
+     * Atomically replace <code>file</code> by a journal only containing
+     * additions of the elements of <code>contents</code>.
+     */
+    private static void writeCompacted(File file, LongHashSet contents) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeHeader(out);
+            final ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+            final IOException[] error = new IOException[1];
+            contents.forEach(e -> {
+                if (error[0] != null)
+                    return;
+                putRecord(buffer, e, OP_ADD);
+                if (!buffer.hasRemaining())
+                    error[0] = drain(out, buffer);
+            });
+            if (error[0] != null)
+                throw error[0];
+            final IOException e = drain(out, buffer);
+            if (e != null)
+                throw e;
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static IOException drain(FileChannel out, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                out.write(buffer);
+        } catch (IOException e) {
+            return e;
+        }
+        buffer.clear();
+        return null;
+    }
+
+    /**
+     * @return the CRC32 of the big-endian representation of <code>e</code>
+     *         and <code>op</code>
+     */
+    private static int checksum(long e, int op) {
+        final CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (e >>> shift));
+        for (int shift = 24; shift >= 0; shift -= 8)
+            crc.update(op >>> shift);
+        return (int) crc.getValue();
+    }
+
+    private static void putRecord(ByteBuffer buffer, long e, int op) {
+        buffer.putLong(e).putInt(op).putInt(checksum(e, op));
+    }
+
+    /**
+     * Replay the journal (using the index in mapped mode). A truncated or
+     * corrupted record ends the journal: it (and anything after it) is
+     * removed from the file.
+     *
+     * @return the number of records replayed
+     */
+    private long load(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.position(0);
+        while (header.hasRemaining() && channel.read(header) >= 0)
+            continue;
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC || header.getInt() != VERSION
+                || header.getInt() != RECORD_SIZE)
+            throw new IOException("The file " + file.toString() + " is not a valid journal.");
+
+        if (indexFile != null) {
+            index = SortedLongIndex.open(indexFile, channel);
+            if (index == null)
+                index = buildIndex(channel);
+        }
+        final long from = index == null ? HEADER_SIZE : index.getCoveredLength();
+        final long validEnd = truncateAfter(channel, scan(channel, from, this::replay));
+        channel.position(validEnd);
+        return (validEnd - from) / RECORD_SIZE;
+    }
+
+    /**
+     * Build the index of the whole journal, unless it contains removals (the
+     * index only contains additions): in that case, the journal is replayed
+     * in memory and the index will be written when the journal is closed.
+     *
+     * @return the index, or <code>null</code>
+     */
+    private SortedLongIndex buildIndex(FileChannel channel) throws IOException {
+        final long[] counts = new long[2];
+        final long validEnd = truncateAfter(channel, scan(channel, HEADER_SIZE, (e, op) -> counts[op - 1]++));
+        if (counts[OP_REMOVE - 1] != 0)
+            return null;
+        log.info(String.format("Indexing %d records of %s...", counts[OP_ADD - 1], file));
+        return SortedLongIndex.build(indexFile, channel, validEnd, counts[OP_ADD - 1],
+                action -> scan(channel, HEADER_SIZE, (e, op) -> action.accept(e)));
+    }
+
+    /**
+     * Visit the valid records of the journal starting at <code>from</code>
+     * (which must be the beginning of a record), mapping it in memory.
+     *
+     * @return the end of the last valid record
+     */
+    private static long scan(FileChannel channel, long from, RecordVisitor visitor) throws IOException {
+        final long size = channel.size();
+        long position = from;
+        while (size - position >= RECORD_SIZE) {
+            final long length = Math.min(SCAN_WINDOW, (size - position) / RECORD_SIZE * RECORD_SIZE);
+            final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, position, length);
+            while (map.hasRemaining()) {
+                final long e = map.getLong();
+                final int op = map.getInt();
+                final int crc = map.getInt();
+                if (crc != checksum(e, op) || (op != OP_ADD && op != OP_REMOVE))
+                    return position;
+                visitor.visit(e, op);
+                position += RECORD_SIZE;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Removes from the journal anything after <code>validEnd</code>
+     *
+     * @return <code>validEnd</code>
+     */
+    private long truncateAfter(FileChannel channel, long validEnd) throws IOException {
+        if (validEnd != channel.size()) {
+            log.warning(String.format("Dropping %d bytes of incomplete records at the end of %s",
+                    channel.size() - validEnd, file));
+            channel.truncate(validEnd);
+            channel.force(true);
+        }
+        return validEnd;
+    }
+
+    private boolean indexContains(long e) {
+        return index != null && index.contains(e);
+    }
+
+    private void replay(long e, int op) {
+        if (op == OP_ADD) {
+            if (indexContains(e))
+                removed.remove(e);
+            else
+                set.add(e);
+        } else if (!set.remove(e) && indexContains(e))
+            removed.add(e);
+    }
+
+    private void commitLoop() {
+        while (true) {
+            final ByteBuffer batch;
+            final long seq;
+            try {
+                lock.lock();
+                try {
+                    while (pending.position() == 0 && !closed)
+                        changed.await();
+                    if (pending.position() == 0)
+                        return;
+                } finally {
+                    lock.unlock();
+                }
+                if (syncWindow > 0)
+                    Thread.sleep(syncWindow);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lock.lock();
+            try {
+                batch = pending;
+                pending = spare;
+                seq = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining())
+                    channel.write(batch);
+                channel.force(false);
+                batch.clear();
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                spare = batch;
+                durableSeq = seq;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Append a record and wait until it is on disk. The caller must hold
+     * lock.
+     */
+    private void appendAndSync(long e, int op) throws IOException {
+        awaitDurable(append(e, op));
+    }
+
+    /**
+     * Append a record, to be written by the committer thread. The caller must
+     * hold lock.
+     *
+     * @return the sequence number of the record
+     */
+    private long append(long e, int op) {
+        if (pending.remaining() < RECORD_SIZE) {
+            final ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        putRecord(pending, e, op);
+        final long seq = ++appendedSeq;
+        changed.signalAll();
+        return seq;
+    }
+
+    /**
+     * The caller must hold lock.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        boolean interrupted = false;
+        while (durableSeq < seq && failure == null)
+            try {
+                changed.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw new IOException("Writing to " + file + " failed", failure);
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed)
+            throw new IOException("The journal " + file + " is closed");
+        if (failure != null)
+            throw new IOException("Writing to " + file + " failed", failure);
+    }
+
+    /**
+     *
+     * @param e
+     * @return <code>true</code> if this set contains the given element,
+     *         <code>false</code> otherwise.
+     */
+    public boolean contains(long e) {
+        lock.lock();
+        try {
+            return set.contains(e) || (indexContains(e) && !removed.contains(e));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param e
+     *            an element to add to the set
+     * @return <code>true</code> if this set did not already contain the
+     *         specified element, <code>false</code> otherwise
+     * @throws IOException
+     *             if writing to the file failed
+     */
+    public boolean add(long e) throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            if (indexContains(e) ? !removed.remove(e) : !set.add(e))
+                return false;
+            appendAndSync(e, OP_ADD);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #add(long)} for several elements, waiting only once for
+     * the disk.
+     *
+     * @param elements
+     *            elements to add to the set
+     * @throws IOException
+     *             if writing to the file failed
+     */
+    public void addAll(long[] elements) throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            long seq = -1;
+            for (final long e : elements)
+                if (indexContains(e) ? removed.remove(e) : set.add(e))
+                    seq = append(e, OP_ADD);
+            if (seq != -1)
+                awaitDurable(seq);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #remove(long)} for several elements, waiting only once for
+     * the disk.
+     *
+     * @param elements
+     *            elements to remove from the set
+     * @throws IOException
+     *             if writing to the file failed
+     */
+    public void removeAll(long[] elements) throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            long seq = -1;
+            for (final long e : elements)
+                if (indexContains(e) ? removed.add(e) : set.remove(e))
+                    seq = append(e, OP_REMOVE);
+            if (seq != -1)
+                awaitDurable(seq);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param e
+     *            an element to remove from the set
+     * @return <code>true</code> if this set contained the specified element,
+     *         <code>false</code> otherwise
+     * @throws IOException
+     *             if writing to the file failed
+     */
+    public boolean remove(long e) throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            if (indexContains(e) ? !removed.add(e) : !set.remove(e))
+                return false;
+            appendAndSync(e, OP_REMOVE);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the current set
+     */
+    long[] toArray() {
+        lock.lock();
+        try {
+            if (index == null)
+                return set.toArray();
+            final long[] result = new long[size()];
+            final int[] i = new int[] { 0 };
+            index.forEach(e -> {
+                if (!removed.contains(e))
+                    result[i[0]++] = e;
+            });
+            set.forEach(e -> result[i[0]++] = e);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the set
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return set.size() + (index == null ? 0 : index.size() - removed.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Clear the set (and the corresponding file)
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            awaitDurable(appendedSeq);
+            set.clear();
+            removed.clear();
+            index = null;
+            if (indexFile != null)
+                Files.deleteIfExists(indexFile.toPath());
+            channel.truncate(HEADER_SIZE);
+            channel.position(HEADER_SIZE);
+            channel.force(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the pending records to be written and close the file. In
+     * mapped mode, the index is updated to cover the whole journal.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            awaitDurable(appendedSeq);
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (indexFile != null && (index == null || index.getCoveredLength() != channel.size())) {
+            log.info("Updating the index of " + file + "...");
+            SortedLongIndex.merge(indexFile, channel, channel.size(), index, removed, set);
+        }
+        channel.close();
+    }
+}
@@ -22,6 +22,18 @@ public class ParsedArguments {
     public final boolean useStartTLS;
     public final int googlePoolSize;
     public final int targetPoolSize;
+    public final long syncWindow;
+    public final boolean mappedState;
+    public final boolean singlePass;
+    public final boolean streaming;
+    public final boolean virtualThreads;
+    public final String sourceIndexDir;
+    public final boolean sync;
+    public final int syncEvery;
+    public final boolean trackingHeader;
+    public final String labelRules;
+    public final boolean allMail;
+    public final int memoryBudget;
 
     ParsedArguments(final String[] args) {
         cliOptions = new Options();
@@ -45,6 +57,52 @@ public class ParsedArguments {
                 .desc("Set the maximum number of simultanious connections to GMail").build());
         cliOptions.addOption(Option.builder().longOpt("target-connection-pool-size").hasArg().argName("integer")
                 .desc("Set the maximum number of simultanious connections to the target server").build());
+        cliOptions.addOption(Option.builder().longOpt("memory-budget").hasArg().argName("megabytes")
+                .desc("Set the maximum size of the messages fetched from GMail and not copied yet (256 by default)")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("sync-window").hasArg().argName("milliseconds")
+                .desc("Set the maximum time to wait for other copies before writing the progress files to disk"
+                        + " (default: 0, write them as soon as possible)")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("mapped-state")
+                .desc("Look up already copied messages in a memory-mapped index (done.txt.idx) instead of loading"
+                        + " them in memory, to resume large transfers instantly")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("single-pass")
+                .desc("Do not count the messages before computing the messages to copy"
+                        + " (faster, but the progress is then displayed in number of folders)")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("streaming")
+                .desc("Start copying messages while the folders are still being scanned"
+                        + " (half of the GMail connections are used to scan folders)")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("virtual-threads")
+                .desc("Use a virtual thread per folder being read and per message being appended (Java 21 or"
+                        + " later), the connection pool sizes still limiting the concurrent operations. The JavaMail"
+                        + " I/O still pins the carrier threads (it synchronizes on the connections), so this mostly"
+                        + " saves the threads waiting for a connection or for memory")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("source-index").hasArg().argName("directory")
+                .desc("Cache the message identifiers of the GMail folders in this directory, so that folders are"
+                        + " only scanned for new messages on the next runs")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("sync")
+                .desc("Only copy the messages added since the previous run, using the source index (./sourceIndex"
+                        + " by default) and, if the server supports it, CONDSTORE to only look at changed messages")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("sync-every").hasArg().argName("minutes")
+                .desc("With --sync, synchronize again periodically instead of exiting").build());
+        cliOptions.addOption(Option.builder().longOpt("all-mail")
+                .desc("Read the messages from the All Mail folder only, their target folders being given by their"
+                        + " labels, instead of scanning every label folder (not with --streaming nor --sync)")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("label-rules").hasArg().argName("file")
+                .desc("Map the GMail labels to the target folders with the rules of this file (see the README)")
+                .build());
+        cliOptions.addOption(Option.builder().longOpt("tracking-header")
+                .desc("Stamp the copied messages with an X-Gmail-Msgid header, so that an interrupted copy is"
+                        + " resumed by looking for the messages in progress instead of deleting them")
+                .build());
 
         CommandLine commandLine = null;
         try {
@@ -74,6 +132,15 @@ public class ParsedArguments {
         targetFolerName = commandLine.getOptionValue("folder");
         useSSL = commandLine.hasOption("ssl");
         useStartTLS = commandLine.hasOption("starttls");
+        mappedState = commandLine.hasOption("mapped-state");
+        singlePass = commandLine.hasOption("single-pass");
+        streaming = commandLine.hasOption("streaming");
+        virtualThreads = commandLine.hasOption("virtual-threads");
+        sourceIndexDir = commandLine.getOptionValue("source-index");
+        sync = commandLine.hasOption("sync");
+        trackingHeader = commandLine.hasOption("tracking-header");
+        labelRules = commandLine.getOptionValue("label-rules");
+        allMail = commandLine.hasOption("all-mail");
         try {
             googlePoolSize = Integer.parseInt(commandLine.getOptionValue("google-connection-pool-size", "-1"));
         } catch (final NumberFormatException e1) {
@@ -92,6 +159,33 @@ public class ParsedArguments {
             System.exit(1);
             throw new AssertionError();
         }
+        try {
+            memoryBudget = Integer.parseInt(commandLine.getOptionValue("memory-budget", "-1"));
+        } catch (final NumberFormatException e1) {
+            System.err.println("Error: Option --memory-budget expects an integer argument");
+            System.err.println();
+            printHelp(System.err);
+            System.exit(1);
+            throw new AssertionError();
+        }
+        try {
+            syncEvery = Integer.parseInt(commandLine.getOptionValue("sync-every", "0"));
+        } catch (final NumberFormatException e1) {
+            System.err.println("Error: Option --sync-every expects an integer argument");
+            System.err.println();
+            printHelp(System.err);
+            System.exit(1);
+            throw new AssertionError();
+        }
+        try {
+            syncWindow = Math.max(0, Long.parseLong(commandLine.getOptionValue("sync-window", "0")));
+        } catch (final NumberFormatException e1) {
+            System.err.println("Error: Option --sync-window expects an integer argument");
+            System.err.println();
+            printHelp(System.err);
+            System.exit(1);
+            throw new AssertionError();
+        }
     }
 
     private void printHelp(PrintStream ps) {
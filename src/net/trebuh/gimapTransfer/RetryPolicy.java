@@ -0,0 +1,141 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import javax.mail.FolderClosedException;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+
+import com.sun.mail.iap.ConnectionException;
+
+/**
+ * Retries of operations that failed because of a transient failure (a
+ * dropped connection, a throttling server...), waiting between the attempts
+ * with an exponential backoff and a random jitter (so that the connections
+ * that failed together do not retry together).
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class RetryPolicy {
+    private static final Logger log = Logger.getLogger(RetryPolicy.class.getName());
+
+    /**
+     * An operation to try.
+     */
+    interface Attempt<T> {
+        T run() throws MessagingException;
+    }
+
+    /**
+     * What to do before trying again (e.g., reconnecting).
+     */
+    interface Recovery {
+        void recover() throws MessagingException;
+    }
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxAttempts
+     *            the maximum number of attempts of an operation (at least 1)
+     * @param baseDelay
+     *            the delay (in milliseconds) before the second attempt,
+     *            doubled for each next attempt
+     * @param maxDelay
+     *            the maximum delay (in milliseconds) between two attempts
+     */
+    RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        if (maxAttempts < 1 || baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException();
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt
+     *            the number of the attempt that failed (starting at 1)
+     * @return the delay (in milliseconds) to wait before the next attempt:
+     *         between half and all of the exponential delay
+     */
+    long delay(int attempt) {
+        final long exponential = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+    }
+
+    /**
+     * Wait before the attempt following <code>attempt</code>.
+     *
+     * @throws MessagingException
+     *             if the thread is interrupted while waiting
+     */
+    void backoff(int attempt) throws MessagingException {
+        try {
+            Thread.sleep(delay(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting to try again", e);
+        }
+    }
+
+    /**
+     * Run <code>attempt</code> until it succeeds, it fails with a failure
+     * that is not transient (see {@link #isTransient(Throwable)}), or it
+     * has been tried {@link #getMaxAttempts()} times.
+     *
+     * @param what
+     *            a description of the operation, for the logs
+     * @param attempt
+     * @param recovery
+     *            run before each new attempt, after the backoff delay
+     * @return the result of the successful attempt
+     * @throws MessagingException
+     *             the failure of the last attempt
+     */
+    <T> T run(String what, Attempt<T> attempt, Recovery recovery) throws MessagingException {
+        for (int i = 1;; i++) {
+            try {
+                return attempt.run();
+            } catch (MessagingException e) {
+                if (i >= maxAttempts || !isTransient(e))
+                    throw e;
+                log.warning(String.format("%s failed (attempt %d/%d), trying again: %s", what, i, maxAttempts, e));
+                backoff(i);
+                try {
+                    recovery.recover();
+                } catch (MessagingException re) {
+                    /* the next attempt will most likely fail, and be counted */
+                    log.warning("Cannot recover: " + re);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if <code>e</code> (or one of its causes) is a
+     *         failure that may not happen again: a closed connection, an I/O
+     *         error or a throttling server
+     */
+    static boolean isTransient(Throwable e) {
+        if (AdaptiveLimit.isThrottling(e))
+            return true;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IOException || t instanceof ConnectionException || t instanceof StoreClosedException
+                    || t instanceof FolderClosedException)
+                return true;
+            if (t.getMessage() != null && t.getMessage().contains("[UNAVAILABLE]"))
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a bounded number of threads, the tasks submitted with the same
+ * key being run one at a time, in submission order.
+ *
+ * Each key has its own queue of tasks, which is scheduled on the threads
+ * while it is not empty. A thread runs a single task of a queue before
+ * scheduling it again, so that the keys share the threads fairly.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class SerialScheduler<K> {
+    private final ExecutorService workers;
+    /**
+     * limit the number of tasks running concurrently (possibly below the
+     * number of workers), acquired in this order (possibly none)
+     */
+    private final AdaptiveLimit[] limits;
+    /**
+     * the queues of the keys with pending tasks (guarded by <code>this</code>)
+     */
+    private final Map<K, ArrayDeque<FutureTask<?>>> queues = new HashMap<>();
+    /**
+     * whether {@link #shutdown()} has been called (guarded by
+     * <code>this</code>)
+     */
+    private boolean shutdown;
+
+    /**
+     * @param nbThreads
+     *            the number of tasks that can run concurrently
+     */
+    SerialScheduler(int nbThreads) {
+        workers = Executors.newFixedThreadPool(nbThreads);
+        limits = new AdaptiveLimit[0];
+    }
+
+    /**
+     * @param workers
+     *            the executor running the tasks, which may start a thread per
+     *            task (e.g., virtual threads, see {@link VirtualThreads})
+     * @param limits
+     *            the number of tasks that can run concurrently: a task runs
+     *            once it has acquired all these limits (e.g., a limit of its
+     *            own and a limit shared with other schedulers)
+     */
+    SerialScheduler(ExecutorService workers, AdaptiveLimit... limits) {
+        this.workers = workers;
+        this.limits = limits.clone();
+    }
+
+    /**
+     * @param key
+     * @param task
+     * @return the completion of the task
+     */
+    Future<?> submit(final K key, final Runnable task) {
+        final FutureTask<?> future = new FutureTask<>(task, null);
+        final boolean idle;
+        synchronized (this) {
+            if (shutdown)
+                throw new IllegalStateException("Scheduler has been shut down");
+            ArrayDeque<FutureTask<?>> queue = queues.get(key);
+            idle = queue == null;
+            if (idle) {
+                queue = new ArrayDeque<>();
+                queues.put(key, queue);
+            }
+            queue.add(future);
+        }
+        if (idle)
+            workers.execute(() -> runNext(key));
+        return future;
+    }
+
+    private void runNext(final K key) {
+        final FutureTask<?> next;
+        synchronized (this) {
+            next = queues.get(key).peek();
+        }
+        /* always in the same order, so that the schedulers sharing a limit cannot deadlock */
+        for (final AdaptiveLimit limit : limits)
+            limit.acquireUninterruptibly();
+        try {
+            /* exceptions are reported through the future */
+            next.run();
+        } finally {
+            for (int i = limits.length - 1; i >= 0; i--)
+                limits[i].release();
+        }
+        final boolean more;
+        final boolean terminate;
+        synchronized (this) {
+            final ArrayDeque<FutureTask<?>> queue = queues.get(key);
+            queue.poll();
+            more = !queue.isEmpty();
+            if (!more)
+                queues.remove(key);
+            terminate = shutdown && queues.isEmpty();
+        }
+        if (more)
+            workers.execute(() -> runNext(key));
+        else if (terminate)
+            workers.shutdown();
+    }
+
+    /**
+     * Stop the threads once the submitted tasks are completed. No task can be
+     * submitted afterwards.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (!queues.isEmpty())
+                return;
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * @see ExecutorService#awaitTermination(long, TimeUnit)
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,285 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only, memory-mapped and sorted array of distinct <code>long</code>
+ * values, used as an index of the prefix of a {@link MessageIdJournal}.
+ *
+ * The index file starts with a {@value #HEADER_SIZE} bytes header: a magic
+ * number, the number of values, the length of the journal prefix the index
+ * covers and the last record of this prefix (so that an index is not reused
+ * with another journal). The sorted values follow.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class SortedLongIndex {
+    private static final long MAGIC = 0x4754494458000001L; // "GTIDX" + 1
+    static final int HEADER_SIZE = 48;
+
+    /**
+     * Like {@link java.util.function.LongConsumer}, but the source can throw
+     * an {@link IOException}.
+     */
+    interface LongSource {
+        void forEach(java.util.function.LongConsumer action) throws IOException;
+    }
+
+    private final LongBuffer values;
+    private final int count;
+    private final long coveredLength;
+
+    private SortedLongIndex(LongBuffer values, int count, long coveredLength) {
+        this.values = values;
+        this.count = count;
+        this.coveredLength = coveredLength;
+    }
+
+    /**
+     * @return the number of values in the index
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the length of the journal prefix covered by this index
+     */
+    long getCoveredLength() {
+        return coveredLength;
+    }
+
+    boolean contains(long e) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long v = values.get(mid);
+            if (v < e)
+                low = mid + 1;
+            else if (v > e)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    void forEach(java.util.function.LongConsumer action) {
+        for (int i = 0; i < count; i++)
+            action.accept(values.get(i));
+    }
+
+    /**
+     * Map an existing index.
+     *
+     * @param indexFile
+     * @param journal
+     *            the journal the index should cover a prefix of
+     * @return the index, or <code>null</code> if the file does not exist or
+     *         is not a valid index of a prefix of <code>journal</code>
+     * @throws IOException
+     */
+    static SortedLongIndex open(File indexFile, FileChannel journal) throws IOException {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE)
+            return null;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            if (header == null || header.getLong() != MAGIC)
+                return null;
+            final long count = header.getLong();
+            final long coveredLength = header.getLong();
+            if (count < 0 || channel.size() < HEADER_SIZE + 8 * count || coveredLength > journal.size()
+                    || (coveredLength - MessageIdJournal.HEADER_SIZE) % MessageIdJournal.RECORD_SIZE != 0)
+                return null;
+            if (coveredLength > MessageIdJournal.HEADER_SIZE) {
+                final ByteBuffer lastRecord = readFully(journal, coveredLength - MessageIdJournal.RECORD_SIZE,
+                        MessageIdJournal.RECORD_SIZE);
+                final byte[] expected = new byte[MessageIdJournal.RECORD_SIZE];
+                header.get(expected);
+                if (lastRecord == null || !Arrays.equals(expected, lastRecord.array()))
+                    return null;
+            }
+            checkMappable(count);
+            final MappedByteBuffer map = channel.map(MapMode.READ_ONLY, HEADER_SIZE, 8 * count);
+            return new SortedLongIndex(map.asLongBuffer(), (int) count, coveredLength);
+        }
+    }
+
+    /**
+     * Build an index from unsorted values, sorting them in place in the
+     * mapped index file (and not on the heap).
+     *
+     * @param indexFile
+     * @param journal
+     * @param coveredLength
+     *            the length of the prefix of the journal the values come from
+     * @param maxCount
+     *            the maximum number of values <code>source</code> provides
+     * @param source
+     * @return the index
+     * @throws IOException
+     */
+    static SortedLongIndex build(File indexFile, FileChannel journal, long coveredLength, long maxCount,
+            LongSource source) throws IOException {
+        checkMappable(maxCount);
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        final int count;
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer map = channel.map(MapMode.READ_WRITE, HEADER_SIZE, 8 * maxCount);
+            final LongBuffer values = map.asLongBuffer();
+            source.forEach(values::put);
+            final int n = values.position();
+            heapSort(values, n);
+            count = distinct(values, n);
+            map.force();
+            writeHeader(channel, journal, count, coveredLength);
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        final SortedLongIndex index = open(indexFile, journal);
+        if (index == null || index.size() != count)
+            throw new IOException("Cannot read back the index " + indexFile);
+        return index;
+    }
+
+    /**
+     * Write a new index containing the values of <code>base</code> (if any)
+     * that are not in <code>removed</code>, and the values of
+     * <code>added</code>.
+     *
+     * @param indexFile
+     * @param journal
+     * @param coveredLength
+     * @param base
+     *            may be <code>null</code>
+     * @param removed
+     *            values of <code>base</code> to skip
+     * @param added
+     *            values not in <code>base</code>
+     * @throws IOException
+     */
+    static void merge(File indexFile, FileChannel journal, long coveredLength, SortedLongIndex base,
+            LongHashSet removed, LongHashSet added) throws IOException {
+        final long[] sortedAdded = added.toArray();
+        Arrays.sort(sortedAdded);
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            final int baseCount = base == null ? 0 : base.count;
+            int i = 0;
+            int j = 0;
+            while (i < baseCount || j < sortedAdded.length) {
+                final long next;
+                if (j == sortedAdded.length || (i < baseCount && base.values.get(i) < sortedAdded[j])) {
+                    next = base.values.get(i++);
+                    if (removed.contains(next))
+                        continue;
+                } else
+                    next = sortedAdded[j++];
+                if (!buffer.hasRemaining())
+                    drain(channel, buffer);
+                buffer.putLong(next);
+                count++;
+            }
+            drain(channel, buffer);
+            writeHeader(channel, journal, count, coveredLength);
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeHeader(FileChannel channel, FileChannel journal, long count, long coveredLength)
+            throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC).putLong(count).putLong(coveredLength);
+        if (coveredLength > MessageIdJournal.HEADER_SIZE)
+            header.put(readFully(journal, coveredLength - MessageIdJournal.RECORD_SIZE,
+                    MessageIdJournal.RECORD_SIZE));
+        header.clear();
+        channel.write(header, 0);
+        channel.force(true);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                return null;
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void checkMappable(long count) throws IOException {
+        if (8 * count > Integer.MAX_VALUE)
+            throw new IOException("Too many values (" + count + ") to be mapped in memory");
+    }
+
+    /**
+     * In place heap sort of the <code>n</code> first values of
+     * <code>values</code> (no recursion, no additional memory).
+     */
+    private static void heapSort(LongBuffer values, int n) {
+        for (int i = n / 2 - 1; i >= 0; i--)
+            siftDown(values, i, n);
+        for (int end = n - 1; end > 0; end--) {
+            final long max = values.get(0);
+            values.put(0, values.get(end));
+            values.put(end, max);
+            siftDown(values, 0, end);
+        }
+    }
+
+    private static void siftDown(LongBuffer values, int i, int n) {
+        final long v = values.get(i);
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n)
+                break;
+            if (child + 1 < n && values.get(child + 1) > values.get(child))
+                child++;
+            if (values.get(child) <= v)
+                break;
+            values.put(i, values.get(child));
+            i = child;
+        }
+        values.put(i, v);
+    }
+
+    /**
+     * Removes consecutive duplicates of the <code>n</code> first (sorted)
+     * values of <code>values</code>.
+     *
+     * @return the number of distinct values
+     */
+    private static int distinct(LongBuffer values, int n) {
+        if (n == 0)
+            return 0;
+        int last = 0;
+        for (int i = 1; i < n; i++)
+            if (values.get(i) != values.get(last))
+                values.put(++last, values.get(i));
+        return last + 1;
+    }
+}
@@ -0,0 +1,372 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import com.google.common.hash.Hashing;
+import com.sun.mail.gimap.GmailFolder;
+import com.sun.mail.gimap.GmailMessage;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.Status;
+
+/**
+ * An on-disk cache of the Google message identifiers of the messages of the
+ * source folders, so that unchanged folders do not have to be scanned again.
+ *
+ * There is one file per folder, containing the UIDVALIDITY and UIDNEXT of the
+ * folder when it was scanned, and the UID and Google message identifier of
+ * each message. As long as the UIDVALIDITY of a folder does not change, the
+ * UIDs of its messages do not change either: only the messages with a UID
+ * greater than or equal to the cached UIDNEXT need to be fetched. Messages
+ * that have been removed from a folder (expunged, or whose label has been
+ * removed) do not change its UIDNEXT: when the number of messages of the
+ * folder differs from the size of its cache, the UIDs that vanished are
+ * dropped from the cache (see {@link #reconcile(IMAPFolder, FolderIndex)}).
+ *
+ * When the server supports CONDSTORE, the HIGHESTMODSEQ of the folder is also
+ * stored, so that {@link #changes(Folder)} can only ask the server for the
+ * messages that have been added or modified (including their labels) since
+ * then.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class SourceIndex {
+    private static final Logger log = Logger.getLogger(SourceIndex.class.getName());
+    private static final long MAGIC_V1 = 0x4754535243000001L; // "GTSRC" + 1
+    private static final long MAGIC = 0x4754535243000002L; // "GTSRC" + 2
+
+    /**
+     * The cached contents of a folder.
+     */
+    static final class FolderIndex {
+        final long uidValidity;
+        final long uidNext;
+        /**
+         * -1 if unknown (or if the server does not support CONDSTORE)
+         */
+        final long highestModSeq;
+        final long[] uids;
+        final long[] msgids;
+
+        FolderIndex(long uidValidity, long uidNext, long highestModSeq, long[] uids, long[] msgids) {
+            this.uidValidity = uidValidity;
+            this.uidNext = uidNext;
+            this.highestModSeq = highestModSeq;
+            this.uids = uids;
+            this.msgids = msgids;
+        }
+
+        /**
+         * @return a copy of this index, extended with the <code>count</code>
+         *         first given messages
+         */
+        FolderIndex extend(long newUidNext, long newHighestModSeq, long[] newUids, long[] newMsgids, int count) {
+            final long[] uids = Arrays.copyOf(this.uids, this.uids.length + count);
+            final long[] msgids = Arrays.copyOf(this.msgids, this.msgids.length + count);
+            System.arraycopy(newUids, 0, uids, this.uids.length, count);
+            System.arraycopy(newMsgids, 0, msgids, this.msgids.length, count);
+            return new FolderIndex(uidValidity, newUidNext, newHighestModSeq, uids, msgids);
+        }
+
+        /**
+         * @param present
+         *            the UIDs of the messages of the folder, sorted
+         * @return a copy of this index without the messages that are not
+         *         <code>present</code>
+         */
+        FolderIndex retain(long[] present) {
+            final long[] uids = new long[this.uids.length];
+            final long[] msgids = new long[this.msgids.length];
+            int count = 0;
+            for (int i = 0; i < this.uids.length; i++)
+                if (Arrays.binarySearch(present, this.uids[i]) >= 0) {
+                    uids[count] = this.uids[i];
+                    msgids[count] = this.msgids[i];
+                    count++;
+                }
+            return new FolderIndex(uidValidity, uidNext, highestModSeq, Arrays.copyOf(uids, count),
+                    Arrays.copyOf(msgids, count));
+        }
+    }
+
+    /**
+     * Messages of a folder that have been added or modified.
+     */
+    static final class FolderChanges {
+        final long[] uids;
+        final long[] msgids;
+        /**
+         * the up to date index of the folder
+         */
+        final FolderIndex index;
+
+        FolderChanges(long[] uids, long[] msgids, FolderIndex index) {
+            this.uids = uids;
+            this.msgids = msgids;
+            this.index = index;
+        }
+    }
+
+    private final File directory;
+    private final FetchProfile fp;
+
+    /**
+     * @param directory
+     *            the directory in which the index files are stored (created
+     *            if needed)
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    public SourceIndex(File directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+        fp = new FetchProfile();
+        fp.add(GmailFolder.FetchProfileItem.MSGID);
+        fp.add(UIDFolder.FetchProfileItem.UID);
+    }
+
+    private File fileOf(String fullName) {
+        return new File(directory,
+                Hashing.sha1().hashString(fullName, StandardCharsets.UTF_8).toString() + ".idx");
+    }
+
+    /**
+     * @return the cached index of the folder, or <code>null</code> if there
+     *         is none (or if it cannot be read)
+     */
+    FolderIndex load(String fullName) {
+        final File file = fileOf(fullName);
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final long magic = in.readLong();
+            if ((magic != MAGIC && magic != MAGIC_V1) || !in.readUTF().equals(fullName))
+                return null;
+            final long uidValidity = in.readLong();
+            final long uidNext = in.readLong();
+            final long highestModSeq = magic == MAGIC ? in.readLong() : -1;
+            final int count = in.readInt();
+            final long[] uids = new long[count];
+            final long[] msgids = new long[count];
+            for (int i = 0; i < count; i++) {
+                uids[i] = in.readLong();
+                msgids[i] = in.readLong();
+            }
+            return new FolderIndex(uidValidity, uidNext, highestModSeq, uids, msgids);
+        } catch (IOException e) {
+            log.warning("Ignoring unreadable index " + file + " of folder " + fullName + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replace the cached index of the folder.
+     */
+    void save(String fullName, FolderIndex index) throws IOException {
+        final File file = fileOf(fullName);
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeLong(MAGIC);
+            out.writeUTF(fullName);
+            out.writeLong(index.uidValidity);
+            out.writeLong(index.uidNext);
+            out.writeLong(index.highestModSeq);
+            out.writeInt(index.uids.length);
+            for (int i = 0; i < index.uids.length; i++) {
+                out.writeLong(index.uids[i]);
+                out.writeLong(index.msgids[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of messages, UIDVALIDITY, UIDNEXT and (if supported)
+     *         HIGHESTMODSEQ of the folder, with a single STATUS command
+     */
+    private static Status status(final IMAPFolder folder) throws MessagingException {
+        final String fullName = folder.getFullName();
+        return (Status) folder.doCommand(p -> p.status(fullName,
+                p.hasCapability("CONDSTORE")
+                        ? new String[] { "MESSAGES", "UIDVALIDITY", "UIDNEXT", "HIGHESTMODSEQ" }
+                        : new String[] { "MESSAGES", "UIDVALIDITY", "UIDNEXT" }));
+    }
+
+    /**
+     * Drop from <code>index</code> the messages that are not in the folder
+     * anymore, if its number of messages differs from the size of the index.
+     *
+     * @param folder
+     *            the open folder, whose new messages are in
+     *            <code>index</code>
+     * @return the reconciled index
+     */
+    private static FolderIndex reconcile(final IMAPFolder folder, final FolderIndex index)
+            throws MessagingException {
+        if (index.uids.length == folder.getMessageCount())
+            return index;
+        final long[] present = (long[]) folder.doCommand(p -> {
+            final Response[] r = p.command("UID SEARCH ALL", null);
+            final List<Long> uids = new ArrayList<>();
+            for (int i = 0; i < r.length; i++)
+                if (r[i] instanceof IMAPResponse && ((IMAPResponse) r[i]).keyEquals("SEARCH")) {
+                    for (long uid = r[i].readLong(); uid != -1; uid = r[i].readLong())
+                        uids.add(uid);
+                    r[i] = null;
+                }
+            p.notifyResponseHandlers(r);
+            p.handleResult(r[r.length - 1]);
+            return uids.stream().mapToLong(Long::longValue).sorted().toArray();
+        });
+        final FolderIndex reconciled = index.retain(present);
+        log.info(String.format("Dropped %d removed messages from the index of folder %s",
+                index.uids.length - reconciled.uids.length, folder.getFullName()));
+        return reconciled;
+    }
+
+    /**
+     * Bring the cached index of <code>folder</code> up to date, fetching only
+     * the messages that are not in the cache, and return it. The folder is
+     * only opened if it changed; it is closed when this method returns.
+     *
+     * @param folder
+     *            a closed GMail folder
+     * @return the up to date index of the folder
+     * @throws MessagingException
+     */
+    FolderIndex refresh(final Folder folder) throws MessagingException {
+        return refresh((IMAPFolder) folder, status((IMAPFolder) folder), load(folder.getFullName()));
+    }
+
+    private FolderIndex refresh(final IMAPFolder folder, final Status status, FolderIndex index)
+            throws MessagingException {
+        final String fullName = folder.getFullName();
+        if (index != null && index.uidValidity == status.uidvalidity && index.uidNext == status.uidnext
+                && index.uids.length == status.total)
+            return index;
+        if (index != null && index.uidValidity != status.uidvalidity)
+            log.info("UIDVALIDITY of folder " + fullName + " changed, scanning it again");
+        if (index == null || index.uidValidity != status.uidvalidity)
+            index = new FolderIndex(status.uidvalidity, 1, -1, new long[0], new long[0]);
+
+        folder.open(Folder.READ_ONLY);
+        try {
+            final Message[] messages = index.uidNext <= 1 ? folder.getMessages()
+                    : folder.getMessagesByUID(index.uidNext, UIDFolder.LASTUID);
+            folder.fetch(messages, fp);
+            final long[] uids = new long[messages.length];
+            final long[] msgids = new long[messages.length];
+            int count = 0;
+            long newUidNext = status.uidnext;
+            for (final Message message : messages) {
+                final long uid = folder.getUID(message);
+                /* "n:*" always matches the last message, even if its UID is lower than n */
+                if (uid < index.uidNext)
+                    continue;
+                uids[count] = uid;
+                msgids[count] = ((GmailMessage) message).getMsgId();
+                count++;
+                newUidNext = Math.max(newUidNext, uid + 1);
+            }
+            index = reconcile(folder, index.extend(newUidNext, status.highestmodseq, uids, msgids, count));
+        } finally {
+            folder.close(false);
+        }
+        save(folder, index);
+        return index;
+    }
+
+    private void save(final Folder folder, final FolderIndex index) {
+        try {
+            save(folder.getFullName(), index);
+        } catch (IOException e) {
+            log.warning("Cannot save the index of folder " + folder.getFullName() + ": " + e);
+        }
+    }
+
+    /**
+     * Get the messages of <code>folder</code> that have been added or
+     * modified (e.g., their labels changed) since the last time its index
+     * has been brought up to date, and bring its index up to date. When the
+     * changes cannot be computed (no previous index, UIDVALIDITY changed or
+     * CONDSTORE not supported), all messages are considered as changed.
+     *
+     * @param folder
+     *            a closed GMail folder
+     * @return the messages that changed
+     * @throws MessagingException
+     */
+    FolderChanges changes(final Folder folder) throws MessagingException {
+        final IMAPFolder imapFolder = (IMAPFolder) folder;
+        final Status status = status(imapFolder);
+        final FolderIndex index = load(folder.getFullName());
+        if (index == null || index.uidValidity != status.uidvalidity || index.highestModSeq < 0
+                || status.highestmodseq < 0) {
+            final FolderIndex refreshed = refresh(imapFolder, status, index);
+            return new FolderChanges(refreshed.uids, refreshed.msgids, refreshed);
+        }
+        if (index.highestModSeq == status.highestmodseq && index.uidNext == status.uidnext
+                && index.uids.length == status.total)
+            return new FolderChanges(new long[0], new long[0], index);
+
+        imapFolder.open(Folder.READ_ONLY, ResyncData.CONDSTORE);
+        final long[] uids;
+        final long[] msgids;
+        int nbNew = 0;
+        final long[] newUids;
+        final long[] newMsgids;
+        long newUidNext = status.uidnext;
+        final FolderIndex updated;
+        try {
+            final Message[] messages = imapFolder.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID,
+                    index.highestModSeq);
+            folder.fetch(messages, fp);
+            uids = new long[messages.length];
+            msgids = new long[messages.length];
+            newUids = new long[messages.length];
+            newMsgids = new long[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                uids[i] = imapFolder.getUID(messages[i]);
+                msgids[i] = ((GmailMessage) messages[i]).getMsgId();
+                if (uids[i] >= index.uidNext) {
+                    newUids[nbNew] = uids[i];
+                    newMsgids[nbNew] = msgids[i];
+                    nbNew++;
+                    newUidNext = Math.max(newUidNext, uids[i] + 1);
+                }
+            }
+            /* CONDSTORE does not report the expunged messages */
+            updated = reconcile(imapFolder, index.extend(newUidNext, status.highestmodseq, newUids, newMsgids, nbNew));
+        } finally {
+            folder.close(false);
+        }
+        save(folder, updated);
+        return new FolderChanges(uids, msgids, updated);
+    }
+}
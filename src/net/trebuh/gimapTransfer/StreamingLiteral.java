@@ -0,0 +1,92 @@
+package net.trebuh.gimapTransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.iap.Literal;
+import com.sun.mail.imap.IMAPMessage;
+
+/**
+ * The content of a source message as an APPEND literal, read from the source
+ * server while it is written to the target server.
+ *
+ * The size of the literal is the RFC822.SIZE of the message, which the source
+ * server already gave us, and the content is read with partial FETCH commands
+ * (see {@link IMAPMessage#getMimeStream()}), so that only a fixed-size
+ * buffer (the <code>fetchsize</code> of the source store) and the copy buffer
+ * are in memory at any time, whatever the size of the message.
+ *
+ * Some header lines may be inserted before the content of the message (see
+ * {@link Copier#TRACKING_HEADER}).
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class StreamingLiteral implements Literal {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final byte[] NO_PREFIX = {};
+
+    private final IMAPMessage msg;
+    private final byte[] prefix;
+    private final int size;
+
+    /**
+     * @param msg
+     *            a message of an open source folder, which must stay open
+     *            until the literal is written
+     * @throws MessagingException
+     */
+    StreamingLiteral(IMAPMessage msg) throws MessagingException {
+        this(msg, NO_PREFIX);
+    }
+
+    /**
+     * @param msg
+     *            a message of an open source folder, which must stay open
+     *            until the literal is written
+     * @param prefix
+     *            header lines (ending with CRLF) to write before the content
+     *            of the message
+     * @throws MessagingException
+     */
+    StreamingLiteral(IMAPMessage msg, byte[] prefix) throws MessagingException {
+        this.msg = msg;
+        this.prefix = prefix;
+        this.size = prefix.length + msg.getSize();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @throws IOException
+     *             if the content cannot be read or if its size is not the
+     *             announced one (in which case the connection to the target
+     *             server is in an unknown state)
+     */
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        os.write(prefix);
+        long written = prefix.length;
+        try (InputStream is = msg.getMimeStream()) {
+            for (int count = is.read(buffer); count != -1; count = is.read(buffer)) {
+                if (written + count > size)
+                    throw new IOException("Message " + msg.getMessageNumber() + " is larger than its announced size "
+                            + size);
+                os.write(buffer, 0, count);
+                written += count;
+            }
+        } catch (MessagingException e) {
+            throw new IOException("Cannot read message " + msg.getMessageNumber(), e);
+        }
+        if (written != size)
+            throw new IOException("Message " + msg.getMessageNumber() + " is smaller (" + written
+                    + " bytes) than its announced size " + size);
+    }
+}
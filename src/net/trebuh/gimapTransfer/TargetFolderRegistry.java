@@ -0,0 +1,86 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The target folders, by path relative to the target root folder, shared by
+ * all consumers.
+ *
+ * It is filled with a single <code>LIST "*"</code> of the target tree (see
+ * {@link #load()}), so that the existing folders are neither looked up nor
+ * checked (the folders returned by LIST are known to exist). A missing folder
+ * is created once, after its missing parents.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class TargetFolderRegistry {
+    private static final Logger log = Logger.getLogger(TargetFolderRegistry.class.getName());
+
+    private final Folder root;
+    private final ConcurrentMap<List<String>, Folder> folders = new ConcurrentHashMap<>();
+
+    /**
+     * @param root
+     *            the folder in which the messages are copied
+     */
+    TargetFolderRegistry(Folder root) {
+        this.root = root;
+        folders.put(Collections.emptyList(), root);
+    }
+
+    /**
+     * Register all the folders below the root folder.
+     *
+     * @return the number of folders found
+     * @throws MessagingException
+     */
+    int load() throws MessagingException {
+        final Folder[] listed = root.list("*");
+        final String prefix = root.getFullName().isEmpty() ? "" : root.getFullName() + root.getSeparator();
+        final Splitter splitter = Splitter.on(root.getSeparator());
+        for (final Folder folder : listed) {
+            final String fullName = folder.getFullName();
+            if (!fullName.startsWith(prefix) || fullName.length() == prefix.length())
+                continue;
+            folders.putIfAbsent(ImmutableList.copyOf(splitter.split(fullName.substring(prefix.length()))), folder);
+        }
+        log.info(String.format("Found %d target folders", listed.length));
+        return listed.length;
+    }
+
+    /**
+     * @param path
+     *            the path of the folder relative to the root folder
+     * @return the folder, created (after its parents) if needed
+     * @throws MessagingException
+     */
+    Folder get(List<String> path) throws MessagingException {
+        final Folder folder = folders.get(path);
+        return folder != null ? folder : create(path);
+    }
+
+    private synchronized Folder create(List<String> path) throws MessagingException {
+        final Folder registered = folders.get(path);
+        if (registered != null)
+            return registered;
+        final Folder parent = create(path.subList(0, path.size() - 1));
+        final Folder folder = parent.getFolder(path.get(path.size() - 1));
+        /* not listed, but the name may not be split as it was listed */
+        if (!folder.exists()) {
+            log.fine("Creating target folder " + folder.getFullName());
+            folder.create(Folder.HOLDS_FOLDERS | Folder.HOLDS_MESSAGES);
+        }
+        folders.put(ImmutableList.copyOf(path), folder);
+        return folder;
+    }
+}
@@ -0,0 +1,411 @@
+package net.trebuh.gimapTransfer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import com.sun.mail.gimap.GmailFolder;
+import com.sun.mail.gimap.GmailMessage;
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Computes the messages to copy (the "TO DO" set): all messages of the
+ * source folders that have not already been copied, each message being
+ * associated to a single folder.
+ *
+ * Folders are listed with a single LIST command, then scanned in parallel:
+ * each folder is opened (and thus uses its own connection of the store's
+ * connection pool) and the Google message identifiers of its messages are
+ * merged in a {@link ConcurrentLongIntMap}. When a message is found in
+ * several folders, it is associated to the first folder in the listing order
+ * (as the sequential walk did), whatever the order in which the folders are
+ * scanned.
+ *
+ * If a {@link SourceIndex} is given, folders that did not change since the
+ * last run are not opened, and only new messages are fetched from the other
+ * ones.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class TodoPlanner {
+    private static final Logger log = Logger.getLogger(TodoPlanner.class.getName());
+    /**
+     * the claims of {@link #stream(BlockingQueue)} are not pruned while
+     * there are fewer of them
+     */
+    private static final int MIN_CLAIMS_PRUNED = 100000;
+    private final Folder sourceRoot;
+    private final MessageIdJournal done;
+    private final int poolSize;
+    private final int refreshRate;
+    private final SourceIndex sourceIndex;
+    private final FetchProfile fp;
+
+    /**
+     * @param sourceRoot
+     *            the folder in which messages should be (recursively) looked
+     *            for
+     * @param done
+     *            the set of messages that have already been copied
+     * @param poolSize
+     *            the number of folders to scan simultaneously
+     * @param refreshRate
+     *            Refresh rate in milliseconds of status messages
+     * @param sourceIndex
+     *            a cache of the contents of the folders, may be
+     *            <code>null</code>
+     */
+    public TodoPlanner(Folder sourceRoot, MessageIdJournal done, int poolSize, int refreshRate,
+            SourceIndex sourceIndex) {
+        this.sourceRoot = sourceRoot;
+        this.done = done;
+        this.poolSize = poolSize;
+        this.refreshRate = refreshRate;
+        this.sourceIndex = sourceIndex;
+        fp = new FetchProfile();
+        fp.add(GmailFolder.FetchProfileItem.MSGID);
+    }
+
+    /**
+     * @return the Google message identifiers of the messages of
+     *         <code>folder</code> (which is closed when this method returns)
+     * @throws MessagingException
+     */
+    private long[] getMsgIds(final Folder folder) throws MessagingException {
+        if (sourceIndex != null)
+            return sourceIndex.refresh(folder).msgids;
+        if (!folder.isOpen())
+            folder.open(Folder.READ_ONLY);
+        final Message[] messages = folder.getMessages();
+        folder.fetch(messages, fp);
+        final long[] msgids = new long[messages.length];
+        for (int i = 0; i < messages.length; i++)
+            msgids[i] = ((GmailMessage) messages[i]).getMsgId();
+        folder.close(false);
+        return msgids;
+    }
+
+    /**
+     * @return the folders (in listing order) holding messages of
+     *         <code>root</code>, including <code>root</code> itself
+     * @throws MessagingException
+     */
+    static List<Folder> listFolders(final Folder root) throws MessagingException {
+        final List<Folder> folders = new ArrayList<>();
+        if ((root.getType() & Folder.HOLDS_MESSAGES) != 0)
+            folders.add(root);
+        if ((root.getType() & Folder.HOLDS_FOLDERS) != 0)
+            for (final Folder folder : root.list("*"))
+                if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0)
+                    folders.add(folder);
+        return folders;
+    }
+
+    /**
+     * @param singlePass
+     *            if <code>true</code>, the messages are not counted first:
+     *            the progress is then displayed in number of folders
+     * @return the messages to copy, grouped by the folder they should be
+     *         copied from (in listing order)
+     * @throws MessagingException
+     */
+    public Map<Folder, LongHashSet> plan(boolean singlePass) throws MessagingException {
+        final List<Folder> folders = listFolders(sourceRoot);
+        log.info(String.format("Found %d folders on source server", folders.size()));
+        final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        try {
+            int nbMessages = -1;
+            if (!singlePass) {
+                nbMessages = count(pool, folders);
+                log.info(String.format("Found %d messages (including duplicates) on source server", nbMessages));
+                if (nbMessages == 0)
+                    return new LinkedHashMap<>();
+            }
+            return computeTODO(pool, folders, nbMessages);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private int count(final ExecutorService pool, final List<Folder> folders) throws MessagingException {
+        log.info("Counting messages...");
+        final AtomicInteger nbMessages = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (final Folder folder : folders)
+            futures.add(pool.submit(() -> {
+                int messageCount = folder.getMessageCount();
+                if (messageCount == -1) {
+                    if (!folder.isOpen())
+                        folder.open(Folder.READ_ONLY);
+                    messageCount = folder.getMessageCount();
+                    folder.close(false);
+                }
+                nbMessages.addAndGet(messageCount);
+                return null;
+            }));
+        await(futures, () -> String.format("\rCounting messages... %d found", nbMessages.get()));
+        System.err.println();
+        return nbMessages.get();
+    }
+
+    /**
+     * Compute the messages to copy from the single folder holding all the
+     * messages ([Gmail]/All Mail, whose name is localized), in which each
+     * message appears once, instead of scanning every label folder: the
+     * target folder of each message is then given by its labels (see
+     * {@link Copier#withAllMailSource()}).
+     *
+     * @return the messages to copy, in a single folder
+     * @throws MessagingException
+     *             if there is no All Mail folder in the source folders
+     */
+    public Map<Folder, LongHashSet> planAllMail() throws MessagingException {
+        final Folder allMail = findAllMail(listFolders(sourceRoot));
+        log.info("Computing messages to copy from " + allMail.getFullName() + "...");
+        final long[] msgIds = getMsgIds(allMail);
+        final LongHashSet todo = new LongHashSet(Math.max(0, msgIds.length - done.size()));
+        for (final long msgId : msgIds)
+            if (!done.contains(msgId))
+                todo.add(msgId);
+        log.info(String.format("Found %d messages, %d to copy", msgIds.length, todo.size()));
+        final Map<Folder, LongHashSet> result = new LinkedHashMap<>();
+        if (!todo.isEmpty())
+            result.put(allMail, todo);
+        return result;
+    }
+
+    /**
+     * @return the folder with the <code>\All</code> special-use attribute
+     *         (RFC 6154)
+     * @throws MessagingException
+     *             if there is none
+     */
+    private static Folder findAllMail(final List<Folder> folders) throws MessagingException {
+        for (final Folder folder : folders)
+            if (folder instanceof IMAPFolder)
+                for (final String attribute : ((IMAPFolder) folder).getAttributes())
+                    if (attribute.equalsIgnoreCase("\\All"))
+                        return folder;
+        throw new MessagingException("No All Mail folder (with the \\All attribute) in the source folders");
+    }
+
+    /**
+     * @param nbMessages
+     *            the number of messages in the folders (including duplicates
+     *            and messages already copied), or -1 if unknown
+     */
+    private Map<Folder, LongHashSet> computeTODO(final ExecutorService pool, final List<Folder> folders,
+            final int nbMessages) throws MessagingException {
+        log.info("Computing messages to copy...");
+        final int expected = Math.max(0, nbMessages - done.size());
+        final ConcurrentLongIntMap todo = new ConcurrentLongIntMap(expected);
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger scannedFolders = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < folders.size(); i++) {
+            final int rank = i;
+            final Folder folder = folders.get(i);
+            futures.add(pool.submit(() -> {
+                for (final long msgId : getMsgIds(folder)) {
+                    if (done.contains(msgId))
+                        continue;
+                    if (todo.putMin(msgId, rank) != -1)
+                        duplicates.incrementAndGet();
+                }
+                scannedFolders.incrementAndGet();
+                return null;
+            }));
+        }
+        await(futures, () -> {
+            if (nbMessages < 0)
+                return String.format("\r...%d/%d folders (%d messages to copy)", scannedFolders.get(),
+                        folders.size(), todo.size());
+            final int remaining = expected - duplicates.get();
+            return remaining <= 0 ? "\r...100.0%" : String.format("\r...%5.1f%%", (todo.size() * 100f) / remaining);
+        });
+        System.err.println(String.format("\r...100.0%% Found %d messages to copy", todo.size()));
+
+        final List<LongHashSet> byFolder = new ArrayList<>(folders.size());
+        for (int i = 0; i < folders.size(); i++)
+            byFolder.add(new LongHashSet());
+        todo.forEach((msgId, rank) -> byFolder.get(rank).add(msgId));
+        final Map<Folder, LongHashSet> result = new LinkedHashMap<>();
+        for (int i = 0; i < folders.size(); i++)
+            if (!byFolder.get(i).isEmpty())
+                result.put(folders.get(i), byFolder.get(i));
+        return result;
+    }
+
+    /**
+     * Compute the messages to copy after bringing the index of the folders up
+     * to date with the messages that have been added or modified since the
+     * last time the folders were scanned (see
+     * {@link SourceIndex#changes(Folder)}): the new messages, and the indexed
+     * messages that have not been copied yet (e.g., whose copy failed during
+     * a previous synchronization). Modified messages that have already been
+     * copied are only reported: the copies are not updated.
+     *
+     * @return the messages to copy, with their UIDs, grouped by the folder
+     *         they should be copied from (in listing order)
+     * @throws MessagingException
+     * @throws IllegalStateException
+     *             if this planner has no {@link SourceIndex}
+     */
+    public List<FolderBatch> planChanges() throws MessagingException {
+        if (sourceIndex == null)
+            throw new IllegalStateException("Computing changes requires a source index");
+        final List<Folder> folders = listFolders(sourceRoot);
+        final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        try {
+            log.info(String.format("Looking for changes in %d folders...", folders.size()));
+            final ConcurrentLongIntMap todo = new ConcurrentLongIntMap();
+            final AtomicInteger modifiedDone = new AtomicInteger();
+            final SourceIndex.FolderChanges[] changes = new SourceIndex.FolderChanges[folders.size()];
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < folders.size(); i++) {
+                final int rank = i;
+                futures.add(pool.submit(() -> {
+                    changes[rank] = sourceIndex.changes(folders.get(rank));
+                    for (final long msgId : changes[rank].msgids)
+                        if (done.contains(msgId))
+                            modifiedDone.incrementAndGet();
+                    /* not only the changes: the messages whose copy failed are not modified */
+                    for (final long msgId : changes[rank].index.msgids)
+                        if (!done.contains(msgId))
+                            todo.putMin(msgId, rank);
+                    return null;
+                }));
+            }
+            await(futures, null);
+            if (modifiedDone.get() != 0)
+                log.info(String.format("%d already copied messages have been modified (e.g., their labels),"
+                        + " their copies are left unchanged", modifiedDone.get()));
+            log.info(String.format("Found %d messages to copy", todo.size()));
+
+            final List<FolderBatch> batches = new ArrayList<>();
+            for (int i = 0; i < folders.size(); i++) {
+                final SourceIndex.FolderIndex index = changes[i].index;
+                final LongHashSet msgids = new LongHashSet();
+                final long[] uids = new long[index.uids.length];
+                int count = 0;
+                for (int j = 0; j < uids.length; j++)
+                    if (todo.get(index.msgids[j]) == i && msgids.add(index.msgids[j]))
+                        uids[count++] = index.uids[j];
+                if (count != 0)
+                    batches.add(new FolderBatch(folders.get(i), msgids, Arrays.copyOf(uids, count)));
+            }
+            return batches;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan the folders, sending the messages to copy of each folder to
+     * <code>out</code> as soon as the folder has been scanned (blocking while
+     * <code>out</code> is full). {@link FolderBatch#END} is sent after the
+     * last folder, even if this method fails.
+     *
+     * Unlike {@link #plan(boolean)}, a message found in several folders is
+     * associated to the first folder scanned, and only the identifiers of the
+     * messages already sent are kept in memory. The identifiers of the
+     * messages that have been copied since (and are thus in
+     * <code>done</code>) are dropped whenever their number doubles, so that
+     * the memory used is about the number of messages sent and not copied
+     * yet, not the number of messages to copy.
+     *
+     * @param out
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public void stream(final BlockingQueue<FolderBatch> out) throws MessagingException, InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        try {
+            final List<Folder> folders = listFolders(sourceRoot);
+            log.info(String.format("Found %d folders on source server", folders.size()));
+            final ConcurrentLongIntMap claimed = new ConcurrentLongIntMap();
+            final AtomicInteger nbClaimed = new AtomicInteger();
+            final AtomicInteger pruneAt = new AtomicInteger(MIN_CLAIMS_PRUNED);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (final Folder folder : folders)
+                futures.add(pool.submit(() -> {
+                    final LongHashSet todo = new LongHashSet();
+                    for (final long msgId : getMsgIds(folder))
+                        if (!done.contains(msgId) && claimed.putMin(msgId, 0) == -1)
+                            todo.add(msgId);
+                    nbClaimed.addAndGet(todo.size());
+                    if (!todo.isEmpty())
+                        out.put(new FolderBatch(folder, todo));
+                    pruneClaims(claimed, pruneAt);
+                    return null;
+                }));
+            await(futures, null);
+            log.info(String.format("Found %d messages to copy", nbClaimed.get()));
+        } finally {
+            pool.shutdownNow();
+            out.put(FolderBatch.END);
+        }
+    }
+
+    /**
+     * Drop the claims of the messages that have been copied (a message in
+     * <code>done</code> is not claimed again), if their number reached
+     * <code>pruneAt</code>, which is then set to twice the number of
+     * remaining claims.
+     */
+    private void pruneClaims(final ConcurrentLongIntMap claimed, final AtomicInteger pruneAt) {
+        final int limit = pruneAt.get();
+        if (claimed.size() < limit || !pruneAt.compareAndSet(limit, Integer.MAX_VALUE))
+            return;
+        final int removed = claimed.removeIf(done::contains);
+        log.fine(String.format("Dropped %d claims of copied messages", removed));
+        pruneAt.set(Math.max(MIN_CLAIMS_PRUNED, 2 * claimed.size()));
+    }
+
+    /**
+     * Wait for all futures, displaying the progress (if any) every
+     * <code>refreshRate</code> milliseconds.
+     *
+     * @throws MessagingException
+     *             if one of the tasks failed
+     */
+    private void await(final List<Future<?>> futures, final Supplier<String> progress) throws MessagingException {
+        for (final Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get(refreshRate, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (final TimeoutException e) {
+                    if (progress != null)
+                        System.err.print(progress.get());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("Interrupted while scanning folders", e);
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof MessagingException)
+                        throw (MessagingException) e.getCause();
+                    throw new MessagingException("Failed to scan folders", e);
+                }
+            }
+        }
+        if (progress != null)
+            System.err.print(progress.get());
+    }
+}
@@ -0,0 +1,49 @@
+package net.trebuh.gimapTransfer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of Java 21 and later, while still compiling
+ * and running on Java 8.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+final class VirtualThreads {
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = find();
+
+    private VirtualThreads() {
+    }
+
+    private static Method find() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the running JVM supports virtual threads
+     */
+    static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return an executor starting a new virtual thread for each task
+     * @throws UnsupportedOperationException
+     *             if the running JVM does not support virtual threads
+     */
+    static ExecutorService newPerTaskExecutor() {
+        if (!isAvailable())
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Cannot create virtual threads", e);
+        }
+    }
+}
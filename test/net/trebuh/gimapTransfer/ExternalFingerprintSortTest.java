@@ -0,0 +1,67 @@
+package net.trebuh.gimapTransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Laurent Hubert-Vaillant
+ */
+public class ExternalFingerprintSortTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * @return the locations reported for each fingerprint (high bits only)
+     */
+    private Map<Long, long[]> duplicates(int runSize, long[][] entries) throws IOException {
+        final Map<Long, long[]> result = new HashMap<>();
+        try (ExternalFingerprintSort sort = new ExternalFingerprintSort(tmp.getRoot(), runSize)) {
+            for (final long[] entry : entries)
+                sort.add(entry[0], entry[1], entry[2]);
+            assertEquals(entries.length, sort.size());
+            sort.forEachDuplicate((high, low, locations) -> result.put(high, locations));
+        }
+        return result;
+    }
+
+    @Test
+    public void reportsOnlyDuplicatesInTheOrderAdded() throws IOException {
+        final long[][] entries = { { 5, 1, 50 }, { 1, 1, 10 }, { 5, 1, 51 }, { 2, 1, 20 }, { 5, 1, 52 },
+                { 2, 2, 21 }, { 1, 1, 11 } };
+        final Map<Long, long[]> found = duplicates(1024, entries);
+        assertEquals(2, found.size());
+        assertArrayEquals(new long[] { 50, 51, 52 }, found.get(5L));
+        assertArrayEquals(new long[] { 10, 11 }, found.get(1L));
+    }
+
+    @Test
+    public void mergesManyRuns() throws IOException {
+        /* more runs than merged at once, with a negative (unsigned) fingerprint */
+        final List<long[]> entries = new ArrayList<>();
+        for (int copy = 0; copy < 3; copy++)
+            for (long i = 0; i < 500; i++)
+                entries.add(new long[] { i == 0 ? -1 : i, i, copy * 1000 + i });
+        for (long i = 0; i < 500; i++)
+            entries.add(new long[] { i, i + 1, 9999 });
+        final Map<Long, long[]> found = duplicates(3, entries.toArray(new long[0][]));
+        assertEquals(500, found.size());
+        for (long i = 0; i < 500; i++)
+            assertArrayEquals(new long[] { i, 1000 + i, 2000 + i }, found.get(i == 0 ? -1 : i));
+    }
+
+    @Test
+    public void noDuplicates() throws IOException {
+        assertEquals(0, duplicates(2, new long[][] { { 1, 1, 1 }, { 2, 2, 2 }, { 3, 3, 3 } }).size());
+        assertEquals(0, duplicates(2, new long[0][]).size());
+    }
+}
@@ -0,0 +1,76 @@
+package net.trebuh.gimapTransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Laurent Hubert-Vaillant
+ */
+public class InProgressTargetsTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        final File file = new File(tmp.getRoot(), "targets");
+        try (InProgressTargets targets = new InProgressTargets(file)) {
+            targets.put(1, Arrays.asList("Personal", "Tab\there\\"), "<a@b>", 1234, false);
+            targets.put(2, Arrays.asList("Work"), null, 42, true);
+        }
+        try (InProgressTargets targets = new InProgressTargets(file)) {
+            final InProgressTargets.Target first = targets.get(1);
+            assertEquals(Arrays.asList("Personal", "Tab\there\\"), first.path);
+            assertEquals("<a@b>", first.messageId);
+            assertEquals(1234, first.size);
+            assertFalse(first.tracked);
+            final InProgressTargets.Target second = targets.get(2);
+            assertEquals(Arrays.asList("Work"), second.path);
+            assertNull(second.messageId);
+            assertEquals(42, second.size);
+            assertTrue(second.tracked);
+            assertNull(targets.get(3));
+        }
+    }
+
+    @Test
+    public void tornEntryIsIgnored() throws IOException {
+        final File file = new File(tmp.getRoot(), "targets");
+        try (InProgressTargets targets = new InProgressTargets(file)) {
+            targets.put(1, Arrays.asList("Personal"), "<a@b>", 10, false);
+        }
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write("2\t20\t<c@d>\tWo".getBytes(StandardCharsets.UTF_8));
+        }
+        try (InProgressTargets targets = new InProgressTargets(file)) {
+            assertEquals(10, targets.get(1).size);
+            assertNull(targets.get(2));
+        }
+    }
+
+    @Test
+    public void clear() throws IOException {
+        final File file = new File(tmp.getRoot(), "targets");
+        try (InProgressTargets targets = new InProgressTargets(file)) {
+            targets.put(1, Arrays.asList("Personal"), "<a@b>", 10, false);
+            targets.clear();
+            targets.put(2, Arrays.asList("Work"), "<c@d>", 20, false);
+        }
+        try (InProgressTargets targets = new InProgressTargets(file)) {
+            assertNull(targets.get(1));
+            assertEquals(20, targets.get(2).size);
+        }
+    }
+}
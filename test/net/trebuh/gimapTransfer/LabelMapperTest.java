@@ -0,0 +1,60 @@
+package net.trebuh.gimapTransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Laurent Hubert-Vaillant
+ */
+public class LabelMapperTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void defaultRules() {
+        final LabelMapper mapper = LabelMapper.DEFAULT;
+        assertEquals(Arrays.asList("Personal", "Project Foo"),
+                mapper.map(Collections.emptyList(), new String[] { "Project Foo", "\\Important", "Personal" }));
+        assertEquals(Arrays.asList("Sent"), mapper.map(Arrays.asList("Sent"), new String[] { "\\Sent" }));
+        assertEquals(Collections.emptyList(), mapper.map(Arrays.asList("INBOX"), new String[] { "\\Inbox" }));
+        /* the labels are sorted */
+        assertEquals(Arrays.asList("Foo", "Projects"),
+                mapper.map(Collections.emptyList(), new String[] { "Projects/Foo" }));
+    }
+
+    @Test
+    public void pathsAreInterned() {
+        final LabelMapper mapper = LabelMapper.DEFAULT;
+        assertSame(mapper.map(Collections.emptyList(), new String[] { "a", "b" }),
+                mapper.map(Arrays.asList("b"), new String[] { "a" }));
+    }
+
+    @Test
+    public void loadedRules() throws IOException {
+        final File rules = tmp.newFile("rules");
+        Files.write(rules.toPath(), Arrays.asList("# comment", "", "rename Old -> New", "ignore Spam",
+                "unless-alone Misc"), StandardCharsets.UTF_8);
+        final LabelMapper mapper = LabelMapper.load(rules);
+        assertEquals(Arrays.asList("New"), mapper.map(Collections.emptyList(), new String[] { "old", "Spam" }));
+        assertEquals(Arrays.asList("Misc"), mapper.map(Collections.emptyList(), new String[] { "Misc" }));
+        assertEquals(Arrays.asList("Work"), mapper.map(Collections.emptyList(), new String[] { "Misc", "Work" }));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidRule() throws IOException {
+        final File rules = tmp.newFile("rules");
+        Files.write(rules.toPath(), Arrays.asList("rename Old"), StandardCharsets.UTF_8);
+        LabelMapper.load(rules);
+    }
+}
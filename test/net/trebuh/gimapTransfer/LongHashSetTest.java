@@ -0,0 +1,62 @@
+package net.trebuh.gimapTransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Laurent Hubert-Vaillant
+ */
+public class LongHashSetTest {
+    @Test
+    public void addRemoveContains() {
+        final LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(0));
+        assertTrue(set.add(-1));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(0));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(Long.MIN_VALUE));
+        assertTrue(set.remove(-1));
+        assertFalse(set.remove(-1));
+        assertFalse(set.contains(-1));
+        final long[] values = set.toArray();
+        Arrays.sort(values);
+        assertArrayEquals(new long[] { Long.MIN_VALUE, 0 }, values);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+    }
+
+    @Test
+    public void matchesHashSet() {
+        final Random random = new Random(42);
+        final LongHashSet set = new LongHashSet(4);
+        final Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200000; i++) {
+            final long value = random.nextInt(50000) * 0x100000001L;
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(value), set.remove(value));
+            else
+                assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        for (final long value : expected)
+            assertTrue(set.contains(value));
+        final long[] count = { 0 };
+        set.forEach(value -> {
+            assertTrue(expected.contains(value));
+            count[0]++;
+        });
+        assertEquals(expected.size(), count[0]);
+    }
+}
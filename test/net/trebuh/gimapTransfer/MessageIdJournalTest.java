@@ -0,0 +1,166 @@
+package net.trebuh.gimapTransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trips of {@link MessageIdJournal} (in memory and mapped, which covers
+ * {@link SortedLongIndex}) and recovery of torn or corrupted records.
+ *
+ * @author Laurent Hubert-Vaillant
+ */
+public class MessageIdJournalTest {
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static long[] sorted(long[] values) {
+        final long[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final File file = new File(tmp.getRoot(), "done");
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertTrue(journal.add(3));
+            assertFalse(journal.add(3));
+            journal.addAll(new long[] { 1, 2, Long.MAX_VALUE, -5 });
+            assertTrue(journal.remove(2));
+            assertFalse(journal.remove(2));
+            journal.removeAll(new long[] { 1, 42 });
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertEquals(3, journal.size());
+            assertArrayEquals(new long[] { -5, 3, Long.MAX_VALUE }, sorted(journal.toArray()));
+            assertFalse(journal.contains(1));
+            assertTrue(journal.contains(-5));
+        }
+    }
+
+    @Test
+    public void clear() throws IOException {
+        final File file = new File(tmp.getRoot(), "inProgress");
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            journal.addAll(new long[] { 1, 2, 3 });
+            journal.clear();
+            journal.add(4);
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertArrayEquals(new long[] { 4 }, journal.toArray());
+        }
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        final File file = new File(tmp.getRoot(), "done");
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            journal.addAll(new long[] { 1, 2 });
+        }
+        final long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            /* half of a record, as if the process died while writing it */
+            raf.seek(length);
+            raf.write(new byte[MessageIdJournal.RECORD_SIZE / 2]);
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertArrayEquals(new long[] { 1, 2 }, sorted(journal.toArray()));
+            assertEquals(length, file.length());
+            journal.add(3);
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertArrayEquals(new long[] { 1, 2, 3 }, sorted(journal.toArray()));
+        }
+    }
+
+    @Test
+    public void corruptedRecordEndsTheJournal() throws IOException {
+        final File file = new File(tmp.getRoot(), "done");
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            journal.add(1);
+            journal.add(2);
+            journal.add(3);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            /* flip a bit of the identifier of the second record */
+            final long position = MessageIdJournal.HEADER_SIZE + MessageIdJournal.RECORD_SIZE + 7;
+            raf.seek(position);
+            final int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 1);
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertArrayEquals(new long[] { 1 }, journal.toArray());
+        }
+        assertEquals(MessageIdJournal.HEADER_SIZE + MessageIdJournal.RECORD_SIZE, file.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidHeaderIsRejected() throws IOException {
+        final File file = new File(tmp.getRoot(), "done");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[MessageIdJournal.HEADER_SIZE]);
+        }
+        new MessageIdJournal(file, 0).close();
+    }
+
+    @Test
+    public void mappedRoundTrip() throws IOException {
+        final File file = new File(tmp.getRoot(), "done");
+        final long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (i * 7919L) % 100003 - 50000;
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0, true)) {
+            journal.addAll(values);
+        }
+        final File indexFile = new File(file.getPath() + ".idx");
+        assertTrue(indexFile.isFile());
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0, true)) {
+            assertEquals(values.length, journal.size());
+            for (final long value : values)
+                assertTrue(journal.contains(value));
+            assertFalse(journal.contains(100003));
+            /* changes after the index are replayed, then merged in the index */
+            assertTrue(journal.remove(values[0]));
+            assertTrue(journal.add(100003));
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0, true)) {
+            assertEquals(values.length, journal.size());
+            assertFalse(journal.contains(values[0]));
+            assertTrue(journal.contains(100003));
+        }
+        /* the same journal, loaded without the index */
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            assertEquals(values.length, journal.size());
+            assertFalse(journal.contains(values[0]));
+            assertTrue(journal.contains(100003));
+        }
+    }
+
+    @Test
+    public void staleIndexIsRebuilt() throws IOException {
+        final File file = new File(tmp.getRoot(), "done");
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0, true)) {
+            journal.addAll(new long[] { 1, 2, 3 });
+        }
+        /* the journal is replaced, the index does not cover it anymore */
+        assertTrue(file.delete());
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0)) {
+            journal.addAll(new long[] { 4, 5 });
+        }
+        try (MessageIdJournal journal = new MessageIdJournal(file, 0, true)) {
+            assertArrayEquals(new long[] { 4, 5 }, sorted(journal.toArray()));
+        }
+    }
+}